@@ -0,0 +1,110 @@
+// java
+package org.juanrdzbaeza.daemon;
+
+import com.jcraft.jsch.Cipher;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.MAC;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Micro-benchmark de arranque para ordenar los cifrados SSH por rendimiento en esta máquina.
+ *
+ * <p>Se mide la implementación real que usará JSch (la clase registrada en {@link JSch#getConfig(String)}),
+ * de modo que los cifrados con aceleración hardware (AES-NI vía JCE) salen por delante. Cada ronda
+ * cifra paquetes del tamaño de una escritura SFTP como lo hace la sesión: los AEAD
+ * ({@code aes*-gcm@openssh.com}, {@code chacha20-poly1305@openssh.com}) autentican además la
+ * longitud y añaden la etiqueta; al resto se le suma el primer MAC que negocia JSch por defecto,
+ * que es lo que pagan en la sesión por la misma integridad. {@code chacha20-poly1305} necesita Bouncy Castle en el classpath; si falta cualquier
+ * implementación el candidato simplemente no se ofrece.</p>
+ */
+public final class CipherBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(CipherBenchmark.class);
+    private static final String[] CANDIDATES = {
+            "aes128-gcm@openssh.com", "aes256-gcm@openssh.com", "chacha20-poly1305@openssh.com",
+            "aes128-ctr", "aes192-ctr", "aes256-ctr"
+    };
+    // paquete SSH típico de una escritura SFTP de 32 KB
+    private static final int PACKET_BYTES = 32 * 1024;
+    private static final int WARMUP_ROUNDS = 64;
+    private static final int ROUNDS = 128;
+
+    private CipherBenchmark() {}
+
+    /**
+     * Devuelve la lista para {@code cipher.c2s}/{@code cipher.s2c}: los candidatos disponibles del
+     * más rápido al más lento, seguidos del resto de cifrados por defecto de JSch como respaldo.
+     */
+    public static String rankCiphers() {
+        Map<String, Double> mbPerSec = new LinkedHashMap<>();
+        for (String name : CANDIDATES) {
+            double speed = measure(name);
+            if (speed > 0) mbPerSec.put(name, speed);
+        }
+        List<String> ranked = new ArrayList<>(mbPerSec.keySet());
+        ranked.sort(Comparator.comparingDouble((String n) -> mbPerSec.get(n)).reversed());
+
+        StringBuilder report = new StringBuilder("Cifrados SSH (MB/s):");
+        for (String n : ranked) report.append(' ').append(n).append('=').append(Math.round(mbPerSec.get(n)));
+        log.info(report.toString());
+
+        List<String> order = new ArrayList<>(ranked);
+        String defaults = JSch.getConfig("cipher.c2s");
+        if (defaults != null) {
+            for (String n : defaults.split(",")) {
+                if (!order.contains(n)) order.add(n);
+            }
+        }
+        return String.join(",", order);
+    }
+
+    // MB/s cifrando (y autenticando) con la implementación de JSch; 0 si no está disponible
+    private static double measure(String name) {
+        try {
+            String impl = JSch.getConfig(name);
+            if (impl == null) return 0;
+            Cipher c = (Cipher) Class.forName(impl).getDeclaredConstructor().newInstance();
+            c.init(Cipher.ENCRYPT_MODE, new byte[c.getBlockSize()], new byte[c.getIVSize()]);
+            MAC mac = null;
+            if (!c.isAEAD()) {
+                String macName = JSch.getConfig("mac.c2s").split(",")[0];
+                mac = (MAC) Class.forName(JSch.getConfig(macName)).getDeclaredConstructor().newInstance();
+                mac.init(new byte[mac.getBlockSize()]);
+            }
+            byte[] packet = new byte[PACKET_BYTES + c.getTagSize()];
+            byte[] tag = new byte[mac != null ? mac.getBlockSize() : 0];
+            int seq = 0;
+            for (int i = 0; i < WARMUP_ROUNDS; i++) encrypt(c, mac, packet, tag, seq++);
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) encrypt(c, mac, packet, tag, seq++);
+            long nanos = Math.max(1, System.nanoTime() - start);
+            return (double) PACKET_BYTES * ROUNDS / (1024 * 1024) / (nanos / 1e9);
+        } catch (Throwable t) {
+            log.debug("Cifrado {} no disponible", name, t);
+            return 0;
+        }
+    }
+
+    // cifra un paquete en el sitio igual que la sesión de JSch: los 4 primeros bytes son la longitud
+    private static void encrypt(Cipher c, MAC mac, byte[] packet, byte[] tag, int seq) throws Exception {
+        if (c.isChaCha20()) {
+            c.update(seq);
+            c.update(packet, 0, 4, packet, 0);
+            c.doFinal(packet, 0, PACKET_BYTES, packet, 0);
+        } else if (c.isAEAD()) {
+            c.updateAAD(packet, 0, 4);
+            c.doFinal(packet, 4, PACKET_BYTES - 4, packet, 4);
+        } else {
+            c.update(packet, 0, PACKET_BYTES, packet, 0);
+            mac.update(seq);
+            mac.update(packet, 0, PACKET_BYTES);
+            mac.doFinal(tag, 0);
+        }
+    }
+}
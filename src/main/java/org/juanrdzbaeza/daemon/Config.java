@@ -21,6 +21,15 @@ import java.util.Properties;
  *   <li>{@code local.dir} — {@code sync} (ruta relativa al working directory)</li>
  *   <li>{@code remote.dir} — {@code /}</li>
  *   <li>{@code poll.seconds} — {@code 30}</li>
+ *   <li>{@code ignore.file} — {@code <local.dir>/.syncignore}</li>
+ *   <li>{@code watch.max.keys} — {@code 8192} (directorios vigilados antes de pasar a modo híbrido)</li>
+ *   <li>{@code scan.seconds} — {@code 10} (intervalo del sondeo por mtime en modo híbrido)</li>
+ *   <li>{@code scan.threads} — {@code 0} (directorios leídos a la vez en el recorrido local; 0 = doble de procesadores)</li>
+ *   <li>{@code remote.max.concurrent} — {@code 4} (operaciones remotas simultáneas por host)</li>
+ *   <li>{@code ssh.compression} — {@code adaptive} ({@code adaptive}, {@code always} o {@code never})</li>
+ *   <li>{@code ssh.ciphers} — vacío (orden decidido por micro-benchmark al arrancar)</li>
+ *   <li>{@code audit.file} — vacío (sin auditoría binaria de transferencias)</li>
+ *   <li>{@code state.file} — {@code <local.dir>/.syncstate} (base de la reconciliación a tres bandas)</li>
  * </ul>
  *
  * <p>Ejemplo de `config.properties`:</p>
@@ -57,6 +66,15 @@ public class Config {
     private final Path localDir;
     private final String remoteDir;
     private final int pollSeconds;
+    private final Path ignoreFile;
+    private final int watchMaxKeys;
+    private final int scanSeconds;
+    private final int scanThreads;
+    private final int remoteMaxConcurrent;
+    private final ThroughputPolicy.Mode sshCompression;
+    private final String sshCiphers;
+    private final Path auditFile;
+    private final Path stateFile;
 
     /**
      * Construye la configuración a partir de un objeto {@link Properties}.
@@ -73,6 +91,18 @@ public class Config {
         this.localDir = Path.of(p.getProperty("local.dir", "sync"));
         this.remoteDir = p.getProperty("remote.dir", "/");
         this.pollSeconds = Integer.parseInt(p.getProperty("poll.seconds", "30"));
+        String ignore = p.getProperty("ignore.file");
+        this.ignoreFile = ignore != null ? Path.of(ignore) : localDir.resolve(".syncignore");
+        this.watchMaxKeys = Integer.parseInt(p.getProperty("watch.max.keys", "8192"));
+        this.scanSeconds = Integer.parseInt(p.getProperty("scan.seconds", "10"));
+        this.scanThreads = Integer.parseInt(p.getProperty("scan.threads", "0"));
+        this.remoteMaxConcurrent = Integer.parseInt(p.getProperty("remote.max.concurrent", "4"));
+        this.sshCompression = ThroughputPolicy.Mode.valueOf(p.getProperty("ssh.compression", "adaptive").trim().toUpperCase());
+        this.sshCiphers = p.getProperty("ssh.ciphers", "").trim();
+        String audit = p.getProperty("audit.file", "").trim();
+        this.auditFile = audit.isEmpty() ? null : Path.of(audit);
+        String stateFile = p.getProperty("state.file");
+        this.stateFile = stateFile != null ? Path.of(stateFile) : localDir.resolve(".syncstate");
     }
 
     /**
@@ -122,4 +152,65 @@ public class Config {
 
     /** Intervalo en segundos para la sincronización periódica desde FTP hacia local. */
     public int getPollSeconds() { return pollSeconds; }
+
+    /**
+     * Fichero de reglas de exclusión estilo {@code .gitignore}.
+     *
+     * <p>Si no existe sólo se aplican las reglas por defecto de {@link IgnoreRules}.</p>
+     */
+    public Path getIgnoreFile() { return ignoreFile; }
+
+    /**
+     * Número máximo de directorios registrados en el WatchService.
+     *
+     * <p>Al acercarse a este valor el watcher pasa a modo híbrido (WatchService sólo para los
+     * directorios activos y sondeo por mtime para el resto). En Linux conviene que sea menor
+     * que {@code fs.inotify.max_user_watches}.</p>
+     */
+    public int getWatchMaxKeys() { return watchMaxKeys; }
+
+    /** Intervalo en segundos del sondeo por mtime de los directorios no vigilados. */
+    public int getScanSeconds() { return scanSeconds; }
+
+    /**
+     * Directorios leídos a la vez en el recorrido paralelo del árbol local (en hilos virtuales).
+     *
+     * <p>Con {@code 0} (por defecto) se usa el doble de procesadores disponibles; en volúmenes de
+     * red con mucha latencia por {@code stat} puede compensar subirlo.</p>
+     */
+    public int getScanThreads() { return scanThreads; }
+
+    /**
+     * Operaciones remotas simultáneas (listados y transferencias) permitidas por host.
+     *
+     * <p>Con SFTP cada operación usa un canal propio de la misma sesión SSH, así que debe ser
+     * menor que el {@code MaxSessions} del servidor (10 por defecto en OpenSSH).</p>
+     */
+    public int getRemoteMaxConcurrent() { return remoteMaxConcurrent; }
+
+    /**
+     * Política de compresión SSH.
+     *
+     * <p>{@code adaptive} elige por fichero entre una sesión comprimida y otra sin comprimir según
+     * la compresibilidad muestreada; {@code always}/{@code never} fuerzan una de las dos.</p>
+     */
+    public ThroughputPolicy.Mode getSshCompression() { return sshCompression; }
+
+    /**
+     * Lista de cifrados SSH en orden de preferencia (formato JSch, separados por comas).
+     * Vacía para decidir el orden con un micro-benchmark al arrancar.
+     */
+    public String getSshCiphers() { return sshCiphers; }
+
+    /**
+     * Fichero de auditoría binaria de transferencias (ver {@link TransferAudit}), o {@code null}
+     * si está desactivada.
+     */
+    public Path getAuditFile() { return auditFile; }
+
+    /**
+     * Fichero donde se persiste la última versión acordada de cada ruta (ver {@link SyncBase}).
+     * Por defecto {@code .syncstate} dentro de {@code local.dir}, que las reglas por defecto ya excluyen.
+     */
+    public Path getStateFile() { return stateFile; }
 }
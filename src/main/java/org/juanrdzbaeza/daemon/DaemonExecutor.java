@@ -0,0 +1,148 @@
+// java
+package org.juanrdzbaeza.daemon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Modelo de ejecución del daemon: un hilo virtual por tarea (transferencia, listado,
+ * manejo de evento o bucle periódico) sin crecer el número de hilos de plataforma.
+ *
+ * <ul>
+ *   <li>La concurrencia contra cada servidor remoto se limita con un {@link Semaphore} por host
+ *   ({@link #permits(String)}).</li>
+ *   <li>{@link #invokeAll(Collection)} lanza subtareas que nunca sobreviven a la tarea padre: si el
+ *   padre es interrumpido o una subtarea falla, las demás se cancelan.</li>
+ *   <li>{@link #shutdown(long)} deja de aceptar trabajo, espera a que termine lo que está en vuelo
+ *   y aborta (interrumpe) lo que siga pendiente al vencer el plazo.</li>
+ * </ul>
+ */
+public class DaemonExecutor {
+    private static final Logger log = LoggerFactory.getLogger(DaemonExecutor.class);
+    private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+    private final Set<Future<?>> inFlight = ConcurrentHashMap.newKeySet();
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final CountDownLatch closing = new CountDownLatch(1);
+    private final int permitsPerHost;
+
+    /**
+     * @param permitsPerHost operaciones remotas simultáneas permitidas por host
+     */
+    public DaemonExecutor(int permitsPerHost) {
+        this.permitsPerHost = Math.max(1, permitsPerHost);
+    }
+
+    /** Semáforo que limita las operaciones simultáneas contra {@code host}. */
+    public Semaphore permits(String host) {
+        return hostPermits.computeIfAbsent(host, h -> new Semaphore(permitsPerHost, true));
+    }
+
+    public boolean isShutdown() {
+        return closing.getCount() == 0;
+    }
+
+    /** Ejecuta la tarea en su propio hilo virtual. */
+    public Future<?> submit(Runnable task) {
+        return submit(Executors.callable(task));
+    }
+
+    /** Ejecuta la tarea en su propio hilo virtual. */
+    public <T> Future<T> submit(Callable<T> task) {
+        if (isShutdown()) throw new RejectedExecutionException("DaemonExecutor detenido");
+        FutureTask<T> ft = new FutureTask<>(task) {
+            @Override
+            protected void done() {
+                inFlight.remove(this);
+            }
+        };
+        inFlight.add(ft);
+        try {
+            threads.execute(ft);
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(ft);
+            throw e;
+        }
+        return ft;
+    }
+
+    /**
+     * Ejecuta {@code task} periódicamente en un hilo virtual hasta {@link #shutdown(long)}.
+     * Una pasada en curso no se interrumpe al parar salvo que venza el plazo de drenado.
+     */
+    public Future<?> scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        return submit(() -> {
+            long periodNanos = unit.toNanos(period);
+            long next = System.nanoTime() + unit.toNanos(initialDelay);
+            try {
+                while (!closing.await(Math.max(0, next - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    next += periodNanos;
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        log.error("Error en tarea periódica", e);
+                    }
+                }
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * Lanza todas las tareas en hilos virtuales y espera sus resultados (en el orden dado).
+     *
+     * <p>Si una falla, se cancelan las restantes y se lanza su {@link ExecutionException}; si el
+     * hilo que espera es interrumpido, también se cancelan todas antes de propagar.</p>
+     */
+    public <T> List<T> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<T> t : tasks) futures.add(submit(t));
+            List<T> results = new ArrayList<>(futures.size());
+            for (Future<T> f : futures) results.add(f.get());
+            return results;
+        } finally {
+            for (Future<T> f : futures) f.cancel(true);
+        }
+    }
+
+    /**
+     * Deja de aceptar tareas, espera hasta {@code drainMillis} a que termine lo que está en
+     * vuelo y aborta lo restante.
+     */
+    public void shutdown(long drainMillis) {
+        closing.countDown();
+        long deadline = System.currentTimeMillis() + drainMillis;
+        while (!inFlight.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int aborted = 0;
+        for (Future<?> f : new ArrayList<>(inFlight)) {
+            if (f.cancel(true)) aborted++;
+        }
+        threads.shutdownNow();
+        if (aborted > 0) log.warn("Tareas abortadas al parar: {}", aborted);
+    }
+}
@@ -2,20 +2,22 @@ package org.juanrdzbaeza.daemon;
 
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.*;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class FtpSyncService {
+    private static final Logger log = LoggerFactory.getLogger(FtpSyncService.class);
     private final Config cfg;
     private final FTPClient ftp = new FTPClient();
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // pasadas periódicas en un hilo virtual (una sola conexión FTP, sin concurrencia)
+    private final DaemonExecutor exec = new DaemonExecutor(1);
 
     public FtpSyncService(Config cfg) {
         this.cfg = cfg;
@@ -39,13 +41,13 @@ public class FtpSyncService {
     }
 
     public void startPeriodicSync() {
-        scheduler.scheduleAtFixedRate(() -> {
-            try { syncRemoteToLocal(); } catch (Exception e) { e.printStackTrace(); }
-        }, 0, cfg.getPollSeconds(), TimeUnit.SECONDS);
+        exec.scheduleAtFixedRate(() -> {
+            try { syncRemoteToLocal(); } catch (Exception e) { log.error("Error sincronizando remoto -> local", e); }
+        }, 0, Math.max(1, cfg.getPollSeconds()), TimeUnit.SECONDS);
     }
 
     public void stop() {
-        scheduler.shutdownNow();
+        exec.shutdown(10_000);
         disconnect();
     }
 
@@ -63,9 +65,9 @@ public class FtpSyncService {
                     in.transferTo(out);
                     in.close();
                     ftp.completePendingCommand();
-                    System.out.println("Downloaded: " + f.getName());
+                    log.info("Downloaded: {}", f.getName());
                 } catch (IOException ex) {
-                    ex.printStackTrace();
+                    log.warn("Error descargando {}", f.getName(), ex);
                 }
             }
         }
@@ -77,10 +79,10 @@ public class FtpSyncService {
             ftp.changeWorkingDirectory(cfg.getRemoteDir());
             try (InputStream in = Files.newInputStream(localPath)) {
                 boolean ok = ftp.storeFile(localPath.getFileName().toString(), in);
-                System.out.println("Uploaded " + localPath.getFileName() + " -> " + ok);
+                log.info("Uploaded {} -> {}", localPath.getFileName(), ok);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            log.warn("Error subiendo {}", localPath, e);
         }
     }
 }
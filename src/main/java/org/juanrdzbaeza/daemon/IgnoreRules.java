@@ -0,0 +1,224 @@
+// java
+package org.juanrdzbaeza.daemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Reglas de exclusión compiladas (estilo {@code .gitignore}) compartidas por el listado remoto,
+ * el recorrido local y el registro de directorios en el WatchService.
+ *
+ * <p>Sintaxis soportada por línea del fichero {@code .syncignore}:</p>
+ * <ul>
+ *   <li>Líneas vacías y las que empiezan por {@code #} se ignoran.</li>
+ *   <li>{@code !patron} niega una regla anterior (la última regla que coincide gana).</li>
+ *   <li>{@code patron/} sólo coincide con directorios.</li>
+ *   <li>Un patrón sin {@code /} intermedia se compara con el nombre de la entrada en cualquier nivel;
+ *   con {@code /} (o empezando por {@code /}) se compara con la ruta relativa completa.</li>
+ *   <li>Comodines: {@code *}, {@code ?}, {@code [abc]}, {@code [!abc]} y {@code **}.</li>
+ * </ul>
+ *
+ * <p>Las reglas por defecto ({@code .*}, {@code *.tmp}, {@code *.part}, {@code *.swp}) reproducen
+ * el antiguo filtro de temporales del watcher; se evalúan antes que las del fichero, que puede
+ * anularlas con {@code !}.
+ * Cuando un directorio coincide, quien recorre el árbol debe podar el subárbol completo
+ * en lugar de filtrar fichero a fichero.</p>
+ */
+public final class IgnoreRules {
+
+    private static final String[] DEFAULT_PATTERNS = {".*", "*.tmp", "*.part", "*.swp"};
+
+    private final Rule[] rules;
+    // atajo O(1) para nombres literales cuando no hay negaciones que puedan reincluirlos
+    private final Set<String> literalNames;
+
+    private IgnoreRules(List<Rule> rules) {
+        boolean hasNegation = false;
+        for (Rule r : rules) hasNegation |= r.negated;
+        Set<String> literals = new HashSet<>();
+        List<Rule> rest = new ArrayList<>();
+        for (Rule r : rules) {
+            if (!hasNegation && r.kind == Kind.NAME && !r.dirOnly && !r.ignoreCase) {
+                literals.add(r.literal);
+            } else {
+                rest.add(r);
+            }
+        }
+        this.literalNames = literals;
+        this.rules = rest.toArray(new Rule[0]);
+    }
+
+    /** Sólo las reglas por defecto (temporales y ficheros ocultos). */
+    public static IgnoreRules defaults() {
+        return new IgnoreRules(defaultRules());
+    }
+
+    /**
+     * Carga las reglas por defecto más las del fichero indicado, si existe.
+     *
+     * @param file ruta al fichero {@code .syncignore}
+     * @return reglas compiladas
+     * @throws IOException si el fichero existe pero no se puede leer
+     */
+    public static IgnoreRules load(Path file) throws IOException {
+        List<Rule> rules = defaultRules();
+        if (file != null && Files.isRegularFile(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                Rule r = Rule.compile(line, false);
+                if (r != null) rules.add(r);
+            }
+        }
+        return new IgnoreRules(rules);
+    }
+
+    private static List<Rule> defaultRules() {
+        List<Rule> rules = new ArrayList<>();
+        for (String p : DEFAULT_PATTERNS) rules.add(Rule.compile(p, true));
+        return rules;
+    }
+
+    /**
+     * Indica si la ruta relativa (separador {@code /}) debe excluirse.
+     *
+     * @param relUnix ruta relativa a la raíz sincronizada; la cadena vacía (raíz) nunca se excluye
+     * @param isDir   si la entrada es un directorio
+     */
+    public boolean isIgnored(String relUnix, boolean isDir) {
+        if (relUnix == null || relUnix.isEmpty()) return false;
+        int slash = relUnix.lastIndexOf('/');
+        String name = slash < 0 ? relUnix : relUnix.substring(slash + 1);
+        if (literalNames.contains(name)) return true;
+        for (int i = rules.length - 1; i >= 0; i--) {
+            Rule r = rules[i];
+            if (r.matches(relUnix, name, isDir)) return !r.negated;
+        }
+        return false;
+    }
+
+    /**
+     * Variante que relativiza {@code path} contra {@code base} antes de evaluar.
+     * Las rutas fuera de {@code base} se evalúan sólo por su nombre.
+     */
+    public boolean isIgnored(Path base, Path path, boolean isDir) {
+        String relUnix;
+        try {
+            relUnix = base.toAbsolutePath().relativize(path.toAbsolutePath()).toString().replace(File.separatorChar, '/');
+        } catch (IllegalArgumentException iae) {
+            relUnix = path.getFileName() != null ? path.getFileName().toString() : "";
+        }
+        return isIgnored(relUnix, isDir);
+    }
+
+    private enum Kind { NAME, SUFFIX, PREFIX, NAME_REGEX, PATH_REGEX }
+
+    private static final class Rule {
+        final Kind kind;
+        final String literal;
+        final Pattern regex;
+        final boolean negated;
+        final boolean dirOnly;
+        final boolean ignoreCase;
+
+        private Rule(Kind kind, String literal, Pattern regex, boolean negated, boolean dirOnly, boolean ignoreCase) {
+            this.kind = kind;
+            this.literal = literal;
+            this.regex = regex;
+            this.negated = negated;
+            this.dirOnly = dirOnly;
+            this.ignoreCase = ignoreCase;
+        }
+
+        static Rule compile(String line, boolean ignoreCase) {
+            String p = line.strip();
+            if (p.isEmpty() || p.startsWith("#")) return null;
+
+            boolean negated = p.startsWith("!");
+            if (negated) p = p.substring(1);
+            boolean dirOnly = p.endsWith("/");
+            while (p.endsWith("/")) p = p.substring(0, p.length() - 1);
+            boolean anchored = p.contains("/");
+            while (p.startsWith("/")) p = p.substring(1);
+            if (p.isEmpty()) return null;
+            if (ignoreCase) p = p.toLowerCase();
+
+            if (anchored) {
+                return new Rule(Kind.PATH_REGEX, null, Pattern.compile(globToRegex(p)), negated, dirOnly, ignoreCase);
+            }
+            int star = p.indexOf('*');
+            boolean otherGlob = p.indexOf('?') >= 0 || p.indexOf('[') >= 0;
+            if (!otherGlob && star < 0) {
+                return new Rule(Kind.NAME, p, null, negated, dirOnly, ignoreCase);
+            }
+            if (!otherGlob && star == 0 && p.indexOf('*', 1) < 0) {
+                return new Rule(Kind.SUFFIX, p.substring(1), null, negated, dirOnly, ignoreCase);
+            }
+            if (!otherGlob && star == p.length() - 1) {
+                return new Rule(Kind.PREFIX, p.substring(0, star), null, negated, dirOnly, ignoreCase);
+            }
+            return new Rule(Kind.NAME_REGEX, null, Pattern.compile(globToRegex(p)), negated, dirOnly, ignoreCase);
+        }
+
+        boolean matches(String relUnix, String name, boolean isDir) {
+            if (dirOnly && !isDir) return false;
+            if (ignoreCase) {
+                relUnix = relUnix.toLowerCase();
+                name = name.toLowerCase();
+            }
+            switch (kind) {
+                case NAME: return name.equals(literal);
+                case SUFFIX: return name.endsWith(literal);
+                case PREFIX: return name.startsWith(literal);
+                case NAME_REGEX: return regex.matcher(name).matches();
+                default: return regex.matcher(relUnix).matches();
+            }
+        }
+
+        // traduce un glob estilo gitignore a expresión regular sobre rutas con '/'
+        private static String globToRegex(String glob) {
+            StringBuilder sb = new StringBuilder();
+            int n = glob.length();
+            for (int i = 0; i < n; i++) {
+                char c = glob.charAt(i);
+                if (c == '*') {
+                    boolean dbl = i + 1 < n && glob.charAt(i + 1) == '*';
+                    if (dbl) {
+                        i++;
+                        if (i + 1 < n && glob.charAt(i + 1) == '/') {
+                            i++;
+                            sb.append("(?:.*/)?");
+                        } else {
+                            sb.append(".*");
+                        }
+                    } else {
+                        sb.append("[^/]*");
+                    }
+                } else if (c == '?') {
+                    sb.append("[^/]");
+                } else if (c == '[') {
+                    int close = glob.indexOf(']', i + 1);
+                    if (close < 0) {
+                        sb.append("\\[");
+                    } else {
+                        String body = glob.substring(i + 1, close);
+                        if (body.startsWith("!")) body = "^" + body.substring(1);
+                        sb.append('[').append(body.replace("\\", "\\\\")).append(']');
+                        i = close;
+                    }
+                } else if ("\\.^$+{}()|".indexOf(c) >= 0) {
+                    sb.append('\\').append(c);
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -1,48 +1,87 @@
 // java
 package org.juanrdzbaeza.daemon;
 
+import ch.qos.logback.classic.LoggerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class JavaSFTPDaemon {
-    public static void main(String[] args) throws IOException {
+    private static final Logger log = LoggerFactory.getLogger(JavaSFTPDaemon.class);
+    // tiempo máximo para que terminen las transferencias en vuelo al parar antes de abortarlas
+    private static final long DRAIN_MS = 10_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
         String cfgPath = (args != null && args.length > 0) ? args[0] : "config.properties";
         Config cfg = Config.load(cfgPath);
 
         // Estado compartido entre watcher y servicio SFTP
         SyncState state = new SyncState();
 
+        // Reglas de exclusión (.syncignore) compartidas por listado remoto, recorrido local y watcher
+        IgnoreRules ignore = IgnoreRules.load(cfg.getIgnoreFile());
+
+        // Hilos virtuales para transferencias, listados y eventos, limitados por semáforo de host
+        DaemonExecutor exec = new DaemonExecutor(cfg.getRemoteMaxConcurrent());
+
         // Instanciar servicio SFTP con el estado
-        SftpSyncService sftp = new SftpSyncService(cfg, state);
+        SftpSyncService sftp = new SftpSyncService(cfg, state, ignore, exec);
 
         // Watcher que recibe también el estado para evitar bucles
-        LocalWatcher watcher = new LocalWatcher(cfg.getLocalDir(), sftp, state);
+        LocalWatcher watcher = new LocalWatcher(cfg.getLocalDir(), sftp, state, ignore,
+                cfg.getWatchMaxKeys(), cfg.getScanSeconds());
 
-        ExecutorService exec = Executors.newFixedThreadPool(2);
-        exec.submit(() -> {
-            try {
-                sftp.startPeriodicSync();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
+        // Recorrido local único y en paralelo: alimenta el índice de la primera sincronización
+        // y el registro del watcher
+        long scanStart = System.nanoTime();
+        ParallelTreeScanner.LocalTree tree =
+                new ParallelTreeScanner(cfg.getLocalDir(), ignore, cfg.getScanThreads(), exec).scan();
+        long scanMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scanStart);
+        sftp.seedLocalIndex(tree);
+        watcher.register(tree);
+        log.info("Startup: listo en {} ms (recorrido local {} ms: {} directorios, {} ficheros)",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), scanMs,
+                tree.getDirs().size(), tree.getFileCount());
+
+        sftp.startPeriodicSync();
+        AtomicBoolean stopping = new AtomicBoolean();
         exec.submit(() -> {
             try {
                 watcher.start();
+                // si el watcher termina, la sincronización periódica sigue cubriendo los cambios locales
+                if (!stopping.get()) log.warn("Watcher detenido; los cambios locales se detectarán en cada poll");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("Watcher detenido por error; los cambios locales se detectarán en cada poll", e);
             }
         });
 
+        CountDownLatch shutdown = new CountDownLatch(1);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stopping.set(true);
             try {
+                // sin nuevos eventos -> drenar/abortar trabajo en vuelo -> cerrar conexión
                 watcher.stop();
+                exec.shutdown(DRAIN_MS);
                 sftp.stop();
-                exec.shutdownNow();
-            } catch (Exception ignored) {}
+            } catch (Exception ignored) {
+            } finally {
+                shutdown.countDown();
+            }
+            // vaciar el buffer del appender asíncrono antes de salir
+            if (LoggerFactory.getILoggerFactory() instanceof LoggerContext ctx) ctx.stop();
         }));
 
-        System.out.println("Daemon started. Press Ctrl+C to stop.");
+        log.info("Daemon started. Press Ctrl+C to stop.");
+
+        // los hilos virtuales son daemon: el hilo principal mantiene vivo el proceso hasta la parada,
+        // aunque el watcher termine antes
+        shutdown.await();
     }
 }
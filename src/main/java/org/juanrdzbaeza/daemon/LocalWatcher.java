@@ -1,136 +1,334 @@
 // java
 package org.juanrdzbaeza.daemon;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Detecta cambios locales y los propaga al remoto.
+ *
+ * <p>Mientras el número de directorios cabe en {@code watch.max.keys} se usa sólo el WatchService
+ * (modo {@code watch}). Al acercarse al límite (o si el sistema rechaza más registros, p. ej. por
+ * el límite de inotify) se pasa a modo híbrido: sólo los directorios con actividad reciente
+ * conservan su {@link WatchKey} y el resto se cubre con un {@link MtimeTreeScanner} cada
+ * {@code scan.seconds}. Los directorios que muestran actividad en el sondeo se promueven al
+ * WatchService desplazando al menos activo; si el sondeo se queda sin directorios se vuelve
+ * al modo {@code watch}.</p>
+ */
 public class LocalWatcher {
+    private static final Logger log = LoggerFactory.getLogger(LocalWatcher.class);
+    // categorías de alto volumen, con nivel y límite de tasa propios (ver logback.xml)
+    private static final Logger events = LoggerFactory.getLogger(LocalWatcher.class.getName() + ".events");
+    private static final Logger skips = LoggerFactory.getLogger(LocalWatcher.class.getName() + ".skip");
+
     private final Path dir;
     private final SftpSyncService sftp;
     private final SyncState state;
+    private final IgnoreRules ignore;
+    private final int hotCapacity;
+    private final long scanIntervalMs;
     private WatchService watcher;
     private volatile boolean running = true;
 
+    // directorio -> key, en orden de acceso: el primero es el menos activo
+    private final Map<Path, WatchKey> keys = new LinkedHashMap<>(16, 0.75f, true);
+    // directorio vigilado -> momento del registro: antes no se habría detectado nada en él
+    private final Map<Path, Long> watchedSince = new HashMap<>();
+    private MtimeTreeScanner scanner;
+    private long nextScanAt;
+    private long lastScanAt;
+
+    private final LatencyStats watchLatency = new LatencyStats();
+    private final LatencyStats scanLatency = new LatencyStats();
+    private long nextReportAt;
+
     private final Set<String> uploading = ConcurrentHashMap.newKeySet();
 
     private static final long STABLE_WAIT_MS = 300;
     private static final long STABLE_MAX_MS = 5_000;
+    private static final long LATENCY_REPORT_MS = 60_000;
+    // fracción de watch.max.keys a partir de la cual se pasa a modo híbrido
+    private static final double WATCH_HIGH_WATER = 0.9;
 
     public LocalWatcher(Path dir, SftpSyncService sftp, SyncState state) {
-        this.dir = dir;
+        this(dir, sftp, state, IgnoreRules.defaults());
+    }
+
+    public LocalWatcher(Path dir, SftpSyncService sftp, SyncState state, IgnoreRules ignore) {
+        this(dir, sftp, state, ignore, Integer.MAX_VALUE, 10);
+    }
+
+    public LocalWatcher(Path dir, SftpSyncService sftp, SyncState state, IgnoreRules ignore,
+                        int maxWatchKeys, int scanSeconds) {
+        this.dir = dir.toAbsolutePath();
         this.sftp = sftp;
         this.state = state;
+        this.ignore = ignore;
+        this.hotCapacity = Math.max(1, (int) (maxWatchKeys * WATCH_HIGH_WATER));
+        this.scanIntervalMs = Math.max(1, scanSeconds) * 1000L;
     }
 
-    public void start() throws IOException, InterruptedException {
+    /**
+     * Registra los directorios de una instantánea ya recorrida, evitando un segundo recorrido
+     * del árbol en {@link #start()}. Debe llamarse antes de {@link #start()}.
+     */
+    public void register(ParallelTreeScanner.LocalTree tree) throws IOException {
         watcher = FileSystems.getDefault().newWatchService();
-        // registrar recursivamente todos los subdirectorios
-        registerAll(dir);
+        for (ParallelTreeScanner.LocalTree.Dir d : tree.getDirs()) {
+            Path dirPath = d.getPath();
+            if (keys.containsKey(dirPath)) continue;
+            if (scanner == null && (keys.size() >= hotCapacity || !register(dirPath))) {
+                switchToHybrid();
+            }
+            if (scanner != null) scanner.track(d);
+        }
+    }
+
+    public void start() throws IOException, InterruptedException {
+        if (watcher == null) {
+            watcher = FileSystems.getDefault().newWatchService();
+            // registrar recursivamente todos los subdirectorios
+            registerAll(dir);
+        }
+        nextReportAt = System.currentTimeMillis() + LATENCY_REPORT_MS;
 
         while (running) {
             WatchKey key;
             try {
-                key = watcher.take();
+                if (scanner == null) {
+                    key = watcher.take();
+                } else {
+                    long wait = nextScanAt - System.currentTimeMillis();
+                    key = wait > 0 ? watcher.poll(wait, TimeUnit.MILLISECONDS) : watcher.poll();
+                }
             } catch (ClosedWatchServiceException cwse) {
                 // El WatchService fue cerrado (probablemente por stop()).
                 // Salir del bucle de forma silenciosa para evitar stacktrace.
                 break;
             }
+
+            if (scanner != null && System.currentTimeMillis() >= nextScanAt) {
+                runScan();
+                nextScanAt = System.currentTimeMillis() + scanIntervalMs;
+            }
+            maybeReportLatency();
+            if (key == null) continue;
+
             Path watchDir = (Path) key.watchable();
+            keys.get(watchDir); // marca actividad para el orden LRU
             for (WatchEvent<?> ev : key.pollEvents()) {
                 WatchEvent.Kind<?> kind = ev.kind();
 
                 if (kind == StandardWatchEventKinds.OVERFLOW) {
-                    System.out.println("WatchService overflow event");
+                    log.warn("WatchService overflow event");
                     continue;
                 }
 
                 Path rel = (Path) ev.context();
                 Path full = watchDir.resolve(rel).toAbsolutePath();
-                System.out.println("Local change detected: " + ev.kind() + " -> " + full);
-
-                if (isTemporaryFile(full)) continue;
-
-                if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-                    // si es directorio creado, registrarlo para vigilar recursivamente
-                    if (Files.isDirectory(full)) {
-                        try {
-                            registerAll(full);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        // no subir directorio en sí
-                        continue;
-                    }
-                }
+                handleChange(kind, full, watchLatency, watchedSince.getOrDefault(watchDir, Long.MAX_VALUE));
+            }
 
-                if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
-                    // borrar remoto (archivo o directorio)
-                    try {
-                        sftp.deleteRemote(full);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    continue;
+            if (!key.reset()) {
+                if (keys.remove(watchDir, key)) watchedSince.remove(watchDir);
+                if (keys.isEmpty() && scanner == null) {
+                    log.warn("WatchKey no válido, saliendo del watcher");
+                    break;
                 }
+            }
+        }
+    }
 
-                // ENTRY_CREATE / ENTRY_MODIFY (archivo)
-                if (state.isRecentlyDownloaded(full)) {
-                    System.out.println("Ignorado (reciente descarga remota): " + full);
-                    continue;
-                }
+    public void stop() {
+        running = false;
+        try { if (watcher != null) watcher.close(); } catch (IOException ignored) {}
+        log.info(latencyReport());
+    }
 
-                if (!Files.exists(full) || !Files.isRegularFile(full)) continue;
-                if (!waitForStableFile(full)) {
-                    System.out.println("Archivo no estable, se omite: " + full);
-                    continue;
-                }
+    /**
+     * Resumen de la latencia de detección (desde el mtime del fichero hasta que se detecta) por modo.
+     *
+     * <p>Sólo cuenta ficheros que pasan los filtros (exclusiones y descargas recientes) y cuyo mtime
+     * es posterior al registro del directorio (modo {@code watch}) o al sondeo anterior (modo
+     * {@code scan}): un mtime más antiguo viene de una descarga, un {@code cp -p}, un unzip o un
+     * rename, y no mide cuánto se tardó en detectar el cambio.</p>
+     */
+    public String latencyReport() {
+        return "Latencia de detección [watch] " + watchLatency + " | [scan] " + scanLatency
+                + " (watch keys=" + keys.size() + ", dirs sondeados=" + (scanner != null ? scanner.size() : 0) + ")";
+    }
+
+    // filtra y registra directorios en el hilo del watcher; borrados y subidas van a hilos virtuales.
+    // since: desde cuándo se habrían detectado cambios en el directorio (para la latencia)
+    private void handleChange(WatchEvent.Kind<?> kind, Path full, LatencyStats stats, long since) {
+        events.debug("Local change detected: {} -> {}", kind, full);
+
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            // ya no se puede saber si era directorio: se evalúan ambas variantes
+            if (ignore.isIgnored(dir, full, false) || ignore.isIgnored(dir, full, true)) return;
+        } else if (ignore.isIgnored(dir, full, Files.isDirectory(full))) {
+            return;
+        }
 
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+            // si es directorio creado, registrarlo para vigilar recursivamente
+            if (Files.isDirectory(full)) {
                 try {
-                    long lastMod = Files.getLastModifiedTime(full).toMillis();
-                    Long prev = state.getLastUploaded(full);
-                    if (prev != null && prev >= lastMod) {
-                        continue;
-                    }
-
-                    String keyStr = full.toString();
-                    if (!uploading.add(keyStr)) {
-                        System.out.println("Ya en subida: " + full);
-                        continue;
-                    }
-
-                    try {
-                        sftp.uploadFile(full);
-                        state.markUploaded(full, lastMod);
-                    } finally {
-                        uploading.remove(keyStr);
-                    }
+                    registerAll(full);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    log.warn("No se pudo registrar {}", full, e);
                 }
+                // no subir directorio en sí
+                return;
             }
+        }
 
-            if (!key.reset()) {
-                System.out.println("WatchKey no válido, saliendo del watcher");
-                break;
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            // borrar remoto (archivo o directorio)
+            if (scanner != null) scanner.untrackTree(full);
+            dispatch(() -> sftp.deleteRemote(full));
+            return;
+        }
+
+        // ENTRY_CREATE / ENTRY_MODIFY (archivo)
+        if (!state.isRecentlyDownloaded(full)) recordLatency(stats, full, since);
+        dispatch(() -> {
+            try {
+                uploadWhenStable(full);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        });
+    }
+
+    private void dispatch(Runnable task) {
+        try {
+            sftp.getExecutor().submit(task);
+        } catch (RejectedExecutionException e) {
+            // parando: no se aceptan nuevas operaciones
         }
     }
 
-    public void stop() {
-        running = false;
-        try { if (watcher != null) watcher.close(); } catch (IOException ignored) {}
+    private void uploadWhenStable(Path full) throws InterruptedException {
+        if (state.isRecentlyDownloaded(full)) {
+            skips.debug("Ignorado (reciente descarga remota): {}", full);
+            return;
+        }
+
+        if (!Files.exists(full) || !Files.isRegularFile(full)) return;
+        if (!waitForStableFile(full)) {
+            skips.info("Archivo no estable, se omite: {}", full);
+            return;
+        }
+
+        try {
+            long lastMod = Files.getLastModifiedTime(full).toMillis();
+            Long prev = state.getLastUploaded(full);
+            if (prev != null && prev >= lastMod) {
+                return;
+            }
+            if (sftp.matchesBase(full)) {
+                skips.debug("Ignorado (contenido igual a la última versión sincronizada): {}", full);
+                return;
+            }
+
+            String keyStr = full.toString();
+            if (!uploading.add(keyStr)) {
+                skips.debug("Ya en subida: {}", full);
+                return;
+            }
+
+            try {
+                // uploadFile sólo la marca como subida si no cambió mientras se enviaba
+                sftp.uploadFile(full);
+            } finally {
+                uploading.remove(keyStr);
+            }
+        } catch (IOException e) {
+            log.warn("Error subiendo {}", full, e);
+        }
     }
 
-    private boolean isTemporaryFile(Path p) {
-        String name = p.getFileName() != null ? p.getFileName().toString() : "";
-        if (name.startsWith(".")) return true;
-        String lower = name.toLowerCase();
-        return lower.endsWith(".tmp") || lower.endsWith(".part") || lower.endsWith(".swp");
+    // pasada del sondeo por mtime sobre los directorios sin WatchKey
+    private void runScan() {
+        long since = lastScanAt;
+        lastScanAt = System.currentTimeMillis();
+        List<Map.Entry<WatchEvent.Kind<Path>, Path>> changes = new ArrayList<>();
+        Set<Path> active = scanner.scan((kind, p) -> changes.add(Map.entry(kind, p)));
+        for (Map.Entry<WatchEvent.Kind<Path>, Path> c : changes) {
+            handleChange(c.getKey(), c.getValue(), scanLatency, since);
+        }
+        for (Path d : active) promote(d);
+        if (scanner.size() == 0) {
+            scanner = null;
+            log.info("Modo de detección: watch ({} directorios vigilados)", keys.size());
+        }
+    }
+
+    // pasa un directorio con actividad del sondeo al WatchService, desplazando al menos activo
+    private void promote(Path d) {
+        if (scanner == null || keys.containsKey(d) || !Files.isDirectory(d)) return;
+        if (keys.size() >= hotCapacity) {
+            Iterator<Map.Entry<Path, WatchKey>> it = keys.entrySet().iterator();
+            Map.Entry<Path, WatchKey> coldest = it.next();
+            it.remove();
+            coldest.getValue().cancel();
+            watchedSince.remove(coldest.getKey());
+            scanner.track(coldest.getKey());
+        }
+        if (register(d)) scanner.untrack(d);
+    }
+
+    private boolean register(Path d) {
+        try {
+            WatchKey k = d.register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            keys.put(d, k);
+            watchedSince.put(d, System.currentTimeMillis());
+            return true;
+        } catch (IOException e) {
+            // normalmente límite de watches del sistema alcanzado
+            return false;
+        }
+    }
+
+    private void switchToHybrid() {
+        scanner = new MtimeTreeScanner(dir, ignore);
+        lastScanAt = System.currentTimeMillis();
+        nextScanAt = lastScanAt + scanIntervalMs;
+        log.info("Modo de detección: híbrido ({} directorios vigilados, resto por sondeo cada {}s)",
+                keys.size(), scanIntervalMs / 1000);
+    }
+
+    private void recordLatency(LatencyStats stats, Path p, long since) {
+        try {
+            long mtime = Files.getLastModifiedTime(p).toMillis();
+            if (mtime < since) return;
+            stats.record(Math.max(0, System.currentTimeMillis() - mtime));
+        } catch (IOException ignored) {}
+    }
+
+    private void maybeReportLatency() {
+        long now = System.currentTimeMillis();
+        if (now < nextReportAt) return;
+        nextReportAt = now + LATENCY_REPORT_MS;
+        log.info(latencyReport());
     }
 
     private boolean waitForStableFile(Path p) throws InterruptedException {
@@ -161,17 +359,37 @@ public class LocalWatcher {
         return false;
     }
 
-    // registra un directorio y todos sus subdirectorios en el WatchService
+    // registra un directorio y todos sus subdirectorios en el WatchService, podando los excluidos
     private void registerAll(final Path start) throws IOException {
         Files.walkFileTree(start, new java.util.HashSet<>(), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult preVisitDirectory(Path dirPath, BasicFileAttributes attrs) throws IOException {
-                dirPath.register(watcher,
-                        StandardWatchEventKinds.ENTRY_CREATE,
-                        StandardWatchEventKinds.ENTRY_MODIFY,
-                        StandardWatchEventKinds.ENTRY_DELETE);
+                if (ignore.isIgnored(dir, dirPath, true)) return FileVisitResult.SKIP_SUBTREE;
+                if (keys.containsKey(dirPath)) return FileVisitResult.CONTINUE;
+                if (scanner == null && (keys.size() >= hotCapacity || !register(dirPath))) {
+                    switchToHybrid();
+                }
+                if (scanner != null && !scanner.isTracked(dirPath)) scanner.track(dirPath);
                 return FileVisitResult.CONTINUE;
             }
         });
     }
+
+    // acumulador de latencias de detección de un modo
+    private static class LatencyStats {
+        private long count;
+        private long totalMs;
+        private long maxMs;
+
+        synchronized void record(long ms) {
+            count++;
+            totalMs += ms;
+            maxMs = Math.max(maxMs, ms);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "n=" + count + " media=" + (count == 0 ? 0 : totalMs / count) + "ms max=" + maxMs + "ms";
+        }
+    }
 }
@@ -0,0 +1,203 @@
+// java
+package org.juanrdzbaeza.daemon;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Detector de cambios por sondeo incremental de mtimes para los directorios que no tienen
+ * {@link java.nio.file.WatchKey} asignada.
+ *
+ * <p>Cada directorio seguido guarda su mtime y el tamaño/mtime de sus ficheros. En cada pasada
+ * sólo se vuelve a listar un directorio cuando cambia su propio mtime (altas, bajas y renombrados);
+ * si no, basta con hacer {@code stat} de los ficheros ya conocidos para detectar modificaciones.
+ * El seguimiento es por directorio (no recursivo): los subdirectorios se siguen por separado o
+ * están vigilados por el WatchService.</p>
+ *
+ * <p>No es thread-safe: está pensado para usarse sólo desde el hilo del {@link LocalWatcher}.</p>
+ */
+public class MtimeTreeScanner {
+    private final Path root;
+    private final IgnoreRules ignore;
+    private final Map<Path, DirState> dirs = new HashMap<>();
+
+    public MtimeTreeScanner(Path root, IgnoreRules ignore) {
+        this.root = root;
+        this.ignore = ignore;
+    }
+
+    /** Número de directorios cubiertos por el sondeo. */
+    public int size() { return dirs.size(); }
+
+    public boolean isTracked(Path dir) { return dirs.containsKey(dir); }
+
+    /**
+     * Empieza a seguir un directorio tomando su estado actual como línea base (sin emitir eventos).
+     */
+    public void track(Path dir) {
+        DirState st = new DirState();
+        try {
+            st.mtime = Files.getLastModifiedTime(dir).toMillis();
+            list(dir, st.files, st.subdirs);
+            dirs.put(dir, st);
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Empieza a seguir un directorio usando como línea base un listado ya leído
+     * (por ejemplo el del recorrido de arranque), sin volver a listarlo.
+     */
+    public void track(ParallelTreeScanner.LocalTree.Dir d) {
+        DirState st = new DirState();
+        st.mtime = d.mtime;
+        for (Map.Entry<String, long[]> f : d.files.entrySet()) {
+            st.files.put(f.getKey(), f.getValue().clone());
+        }
+        st.subdirs.addAll(d.subdirs);
+        dirs.put(d.path, st);
+    }
+
+    /** Deja de seguir un directorio (por ejemplo al pasar a estar vigilado por el WatchService). */
+    public void untrack(Path dir) {
+        dirs.remove(dir);
+    }
+
+    /** Deja de seguir un directorio y todos sus descendientes. */
+    public void untrackTree(Path dir) {
+        dirs.keySet().removeIf(d -> d.startsWith(dir));
+    }
+
+    /**
+     * Recorre los directorios seguidos y emite un evento por cada cambio detectado.
+     *
+     * @param sink recibe {@code ENTRY_CREATE}, {@code ENTRY_MODIFY} o {@code ENTRY_DELETE} con la ruta afectada
+     * @return directorios en los que se ha detectado actividad
+     */
+    public Set<Path> scan(BiConsumer<WatchEvent.Kind<Path>, Path> sink) {
+        Set<Path> active = new HashSet<>();
+        List<Path> removed = new ArrayList<>();
+        for (Map.Entry<Path, DirState> e : new ArrayList<>(dirs.entrySet())) {
+            Path dir = e.getKey();
+            DirState st = e.getValue();
+            if (!dirs.containsKey(dir)) continue;
+
+            long mtime;
+            try {
+                mtime = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+            } catch (IOException ex) {
+                // el padre lo notificará al volver a listarse; aquí sólo se deja de seguir
+                removed.add(dir);
+                continue;
+            }
+
+            if (mtime != st.mtime) {
+                Map<String, long[]> files = new HashMap<>();
+                Set<String> subdirs = new HashSet<>();
+                try {
+                    list(dir, files, subdirs);
+                } catch (IOException ex) {
+                    continue;
+                }
+                for (Map.Entry<String, long[]> f : files.entrySet()) {
+                    long[] prev = st.files.get(f.getKey());
+                    if (prev == null) {
+                        sink.accept(StandardWatchEventKinds.ENTRY_CREATE, dir.resolve(f.getKey()));
+                        active.add(dir);
+                    } else if (prev[0] != f.getValue()[0] || prev[1] != f.getValue()[1]) {
+                        sink.accept(StandardWatchEventKinds.ENTRY_MODIFY, dir.resolve(f.getKey()));
+                        active.add(dir);
+                    }
+                }
+                for (String name : st.files.keySet()) {
+                    if (!files.containsKey(name)) {
+                        sink.accept(StandardWatchEventKinds.ENTRY_DELETE, dir.resolve(name));
+                        active.add(dir);
+                    }
+                }
+                for (String name : subdirs) {
+                    if (!st.subdirs.contains(name)) {
+                        sink.accept(StandardWatchEventKinds.ENTRY_CREATE, dir.resolve(name));
+                        active.add(dir);
+                    }
+                }
+                for (String name : st.subdirs) {
+                    if (!subdirs.contains(name)) {
+                        untrackTree(dir.resolve(name));
+                        sink.accept(StandardWatchEventKinds.ENTRY_DELETE, dir.resolve(name));
+                        active.add(dir);
+                    }
+                }
+                st.mtime = mtime;
+                st.files = files;
+                st.subdirs = subdirs;
+                continue;
+            }
+
+            // listado sin cambios: sólo stat de los ficheros conocidos
+            for (Iterator<Map.Entry<String, long[]>> it = st.files.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, long[]> f = it.next();
+                Path p = dir.resolve(f.getKey());
+                BasicFileAttributes attrs;
+                try {
+                    attrs = ParallelTreeScanner.readEntry(p);
+                } catch (IOException ex) {
+                    it.remove();
+                    sink.accept(StandardWatchEventKinds.ENTRY_DELETE, p);
+                    active.add(dir);
+                    continue;
+                }
+                long[] prev = f.getValue();
+                long size = attrs.size();
+                long lastMod = attrs.lastModifiedTime().toMillis();
+                if (prev[0] != size || prev[1] != lastMod) {
+                    prev[0] = size;
+                    prev[1] = lastMod;
+                    sink.accept(StandardWatchEventKinds.ENTRY_MODIFY, p);
+                    active.add(dir);
+                }
+            }
+        }
+        for (Path d : removed) untrackTree(d);
+        return active;
+    }
+
+    private void list(Path dir, Map<String, long[]> files, Set<String> subdirs) throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = ParallelTreeScanner.readEntry(p);
+                } catch (IOException ex) {
+                    continue;
+                }
+                if (ignore.isIgnored(root, p, attrs.isDirectory())) continue;
+                String name = p.getFileName().toString();
+                if (attrs.isDirectory()) {
+                    subdirs.add(name);
+                } else if (attrs.isRegularFile()) {
+                    files.put(name, new long[]{attrs.size(), attrs.lastModifiedTime().toMillis()});
+                }
+            }
+        }
+    }
+
+    private static class DirState {
+        long mtime;
+        Map<String, long[]> files = new HashMap<>();
+        Set<String> subdirs = new HashSet<>();
+    }
+}
@@ -0,0 +1,243 @@
+// java
+package org.juanrdzbaeza.daemon;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recorre el árbol local en paralelo (en los hilos virtuales de {@link DaemonExecutor}) leyendo
+ * {@link BasicFileAttributes} una sola vez por entrada.
+ *
+ * <p>Nunca hay más de {@code parallelism} tareas vivas: un subdirectorio sólo lanza una tarea nueva
+ * si queda un permiso de lectura libre; si no, se encola y lo recoge la siguiente tarea que termine
+ * su directorio. Ninguna tarea espera a sus hijos, así que ni los hilos ni las tareas en vuelo
+ * crecen con el número de directorios; el final del recorrido se detecta con un contador de
+ * directorios pendientes.</p>
+ *
+ * <p>El resultado ({@link LocalTree}) alimenta a la vez el índice local de
+ * {@link SftpSyncService} y el registro de directorios de {@link LocalWatcher}, de modo que
+ * el arranque recorre el árbol una única vez. Los subárboles excluidos por {@link IgnoreRules}
+ * no se visitan. Los enlaces simbólicos a ficheros se siguen (se sincroniza el contenido del
+ * destino); los enlaces a directorios no se recorren. Un directorio que no se puede leer queda
+ * fuera del resultado y marca la instantánea como incompleta ({@link LocalTree#isComplete()}).</p>
+ */
+public class ParallelTreeScanner {
+    private final Path root;
+    private final IgnoreRules ignore;
+    private final int parallelism;
+    private final DaemonExecutor exec;
+
+    /**
+     * @param root        directorio raíz a recorrer
+     * @param ignore      reglas de exclusión
+     * @param parallelism directorios leídos a la vez; {@code <= 0} usa el doble de procesadores
+     *                    disponibles (el recorrido está dominado por E/S, no por CPU)
+     * @param exec        ejecutor cuyos hilos virtuales recorren cada directorio
+     */
+    public ParallelTreeScanner(Path root, IgnoreRules ignore, int parallelism, DaemonExecutor exec) {
+        this.root = root.toAbsolutePath();
+        this.ignore = ignore;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors() * 2;
+        this.exec = exec;
+    }
+
+    /** Recorre el árbol completo y devuelve su instantánea. */
+    public LocalTree scan() throws InterruptedException {
+        Walk w = new Walk(parallelism);
+        w.reads.acquire();
+        w.spawn(new Pending(root, ""));
+        try {
+            w.done.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw new IllegalStateException(e.getCause());
+        }
+        return new LocalTree(new ArrayList<>(w.out), new ArrayList<>(w.failed));
+    }
+
+    /**
+     * Atributos de una entrada de directorio: los del destino si es un enlace simbólico a un
+     * fichero, los del propio enlace en otro caso (así un enlace a directorio no se recorre).
+     */
+    static BasicFileAttributes readEntry(Path p) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attrs.isSymbolicLink()) return attrs;
+        try {
+            BasicFileAttributes target = Files.readAttributes(p, BasicFileAttributes.class);
+            return target.isRegularFile() ? target : attrs;
+        } catch (IOException broken) {
+            return attrs;
+        }
+    }
+
+    // estado compartido de un recorrido
+    private final class Walk {
+        final ConcurrentLinkedQueue<LocalTree.Dir> out = new ConcurrentLinkedQueue<>();
+        final ConcurrentLinkedQueue<Path> failed = new ConcurrentLinkedQueue<>();
+        // directorios descubiertos que esperan un permiso libre
+        final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+        final Semaphore reads;
+        // directorios descubiertos y aún no leídos; al llegar a 0 el recorrido ha terminado
+        final AtomicInteger pending = new AtomicInteger(1);
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Walk(int parallelism) {
+            reads = new Semaphore(parallelism);
+        }
+
+        // lanza una tarea para d con un permiso ya adquirido
+        void spawn(Pending d) {
+            try {
+                exec.submit(() -> drain(d));
+            } catch (RejectedExecutionException e) {
+                reads.release();
+                done.completeExceptionally(e);
+            }
+        }
+
+        // con un permiso: lee d y sigue con la cola hasta vaciarla, después suelta el permiso
+        void drain(Pending d) {
+            while (true) {
+                while (d != null) {
+                    visit(d);
+                    d = queue.poll();
+                }
+                reads.release();
+                // quien encoló sin encontrar permiso libre sigue vivo y volverá a mirar la cola,
+                // pero si hay un permiso libre se aprovecha ya
+                if (queue.isEmpty() || !reads.tryAcquire()) return;
+                d = queue.poll();
+            }
+        }
+
+        private void visit(Pending d) {
+            try {
+                read(d);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            } finally {
+                if (pending.decrementAndGet() == 0) done.complete(null);
+            }
+        }
+
+        private void read(Pending d) {
+            long mtime;
+            Map<String, long[]> files = new HashMap<>();
+            Set<String> subdirs = new HashSet<>();
+            List<Pending> children = new ArrayList<>();
+            try {
+                mtime = Files.getLastModifiedTime(d.path).toMillis();
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(d.path)) {
+                    for (Path p : ds) {
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = readEntry(p);
+                        } catch (IOException e) {
+                            continue;
+                        }
+                        String name = p.getFileName().toString();
+                        String childRel = d.rel.isEmpty() ? name : d.rel + "/" + name;
+                        if (ignore.isIgnored(childRel, attrs.isDirectory())) continue;
+                        if (attrs.isDirectory()) {
+                            subdirs.add(name);
+                            children.add(new Pending(p, childRel));
+                        } else if (attrs.isRegularFile()) {
+                            files.put(name, new long[]{attrs.size(), attrs.lastModifiedTime().toMillis()});
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                failed.add(d.path);
+                return;
+            }
+            out.add(new LocalTree.Dir(d.path, d.rel, mtime, files, subdirs));
+            pending.addAndGet(children.size());
+            for (Pending c : children) {
+                if (reads.tryAcquire()) spawn(c);
+                else queue.add(c);
+            }
+        }
+    }
+
+    // directorio descubierto pendiente de leer
+    private static final class Pending {
+        final Path path;
+        final String rel;
+
+        Pending(Path path, String rel) {
+            this.path = path;
+            this.rel = rel;
+        }
+    }
+
+    /**
+     * Instantánea del árbol local: un registro por directorio con sus ficheros (tamaño y mtime)
+     * y los nombres de sus subdirectorios.
+     */
+    public static class LocalTree {
+        private final List<Dir> dirs;
+        private final List<Path> failedDirs;
+        private final int fileCount;
+
+        LocalTree(List<Dir> dirs, List<Path> failedDirs) {
+            this.dirs = dirs;
+            this.failedDirs = failedDirs;
+            int n = 0;
+            for (Dir d : dirs) n += d.files.size();
+            this.fileCount = n;
+        }
+
+        public List<Dir> getDirs() { return dirs; }
+
+        public int getFileCount() { return fileCount; }
+
+        /** Directorios que no se pudieron leer (vacío si el recorrido fue completo). */
+        public List<Path> getFailedDirs() { return failedDirs; }
+
+        /**
+         * {@code false} si algún directorio no se pudo leer: la ausencia de un fichero en esta
+         * instantánea no prueba entonces que se haya borrado.
+         */
+        public boolean isComplete() { return failedDirs.isEmpty(); }
+
+        /** Directorio con ruta absoluta, ruta relativa unix ({@code ""} para la raíz) y contenido. */
+        public static class Dir {
+            final Path path;
+            final String rel;
+            final long mtime;
+            final Map<String, long[]> files;
+            final Set<String> subdirs;
+
+            Dir(Path path, String rel, long mtime, Map<String, long[]> files, Set<String> subdirs) {
+                this.path = path;
+                this.rel = rel;
+                this.mtime = mtime;
+                this.files = files;
+                this.subdirs = subdirs;
+            }
+
+            public Path getPath() { return path; }
+
+            /** Ruta relativa unix de un fichero de este directorio. */
+            String fileRel(String name) {
+                return rel.isEmpty() ? name : rel + "/" + name;
+            }
+        }
+    }
+}
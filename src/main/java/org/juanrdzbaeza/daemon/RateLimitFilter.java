@@ -0,0 +1,62 @@
+// java
+package org.juanrdzbaeza.daemon;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+import org.slf4j.Marker;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Filtro de logback que limita el número de mensajes por segundo de cada categoría (logger).
+ *
+ * <p>Cada categoría tiene un cubo de {@code burst} fichas que se recarga a {@code permitsPerSecond}.
+ * Los mensajes por encima del límite se descartan antes de construirse, así que una tormenta de
+ * eventos del WatchService no satura el appender. {@code WARN} y {@code ERROR} nunca se limitan.</p>
+ *
+ * <pre>{@code
+ * <turboFilter class="org.juanrdzbaeza.daemon.RateLimitFilter">
+ *   <permitsPerSecond>50</permitsPerSecond>
+ *   <burst>200</burst>
+ * </turboFilter>
+ * }</pre>
+ */
+public class RateLimitFilter extends TurboFilter {
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private double permitsPerSecond = 50;
+    private int burst = 200;
+
+    public void setPermitsPerSecond(double permitsPerSecond) { this.permitsPerSecond = permitsPerSecond; }
+
+    public void setBurst(int burst) { this.burst = burst; }
+
+    @Override
+    public FilterReply decide(Marker marker, Logger logger, Level level, String format, Object[] params, Throwable t) {
+        // format == null: consultas isXxxEnabled(), no consumen fichas
+        if (format == null || level.isGreaterOrEqual(Level.WARN)) return FilterReply.NEUTRAL;
+        if (!level.isGreaterOrEqual(logger.getEffectiveLevel())) return FilterReply.NEUTRAL;
+        Bucket b = buckets.computeIfAbsent(logger.getName(), n -> new Bucket(burst));
+        return b.tryAcquire(permitsPerSecond, burst) ? FilterReply.NEUTRAL : FilterReply.DENY;
+    }
+
+    private static class Bucket {
+        private double tokens;
+        private long last = System.nanoTime();
+
+        Bucket(int burst) {
+            this.tokens = burst;
+        }
+
+        synchronized boolean tryAcquire(double perSecond, int burst) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - last) / 1e9 * perSecond);
+            last = now;
+            if (tokens < 1) return false;
+            tokens -= 1;
+            return true;
+        }
+    }
+}
@@ -5,225 +5,709 @@ import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.Session;
 import com.jcraft.jsch.SftpException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.io.File;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 /**
- * SftpSyncService completo: mantiene conexión perezosa, soporta sync recursivo remoto->local,
+ * SftpSyncService completo: mantiene conexión perezosa, reconcilia recursivamente local y remoto,
  * upload/delete remotas y sincronización periódica vía startPeriodicSync().
+ *
+ * <p>La reconciliación es a tres bandas ({@link #reconcile()}): cada ruta se compara en ambos
+ * lados con la última versión acordada, persistida en {@link SyncBase}, y sólo se transfiere el
+ * lado que cambió. Descargas y subidas preservan el mtime para que ambos lados puedan
+ * reconocerse como la misma versión sin leer contenido.</p>
+ *
+ * <p>Todas las operaciones remotas corren en hilos virtuales de {@link DaemonExecutor}. Cada una
+ * toma un canal SFTP de un pool sobre una única sesión SSH; el tamaño del pool lo limita el
+ * semáforo del host ({@code remote.max.concurrent}), que debe quedar por debajo del
+ * {@code MaxSessions} del servidor.</p>
+ *
+ * <p>Hay dos sesiones SSH con el mismo host: una con compresión zlib y otra sin ella.
+ * {@link ThroughputPolicy} elige por transferencia cuál usar según la compresibilidad del
+ * fichero; los listados van por la comprimida. El orden de cifrados se decide al arrancar con
+ * {@link CipherBenchmark} salvo que {@code ssh.ciphers} lo fije.</p>
  */
 public class SftpSyncService {
+    private static final Logger log = LoggerFactory.getLogger(SftpSyncService.class);
+    // descargas, subidas y borrados: categoría propia para poder filtrarla o limitarla
+    private static final Logger transfers = LoggerFactory.getLogger(SftpSyncService.class.getName() + ".transfer");
+    private static final DateTimeFormatter CONFLICT_STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    /** Subidas seguidas de un fichero que cambia mientras se envía antes de dejarlo para otra pasada. */
+    static final int UPLOAD_ATTEMPTS = 3;
+    /**
+     * La reconciliación no sube ficheros modificados hace menos de esto: probablemente se están
+     * escribiendo y el watcher los subirá cuando se estabilicen (o la próxima pasada).
+     */
+    static final long UPLOAD_QUIET_MILLIS = 2_000;
+
     private final Config cfg;
     private final SyncState state;
-    private Session session;
-    private ChannelSftp channel;
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final IgnoreRules ignore;
+    private final ParallelTreeScanner localScanner;
+    // instantánea del arranque para la primera sincronización (se consume una vez)
+    private volatile ParallelTreeScanner.LocalTree seedTree;
+    private final DaemonExecutor exec;
+    private final boolean ownsExecutor;
+    private final Semaphore permits;
+    // lecturas locales completas simultáneas (huella al adoptar una ruta sin base o tras un touch)
+    private final Semaphore localReads;
+    private final ThroughputPolicy policy;
+    private final String cipherOrder;
+    private final TransferAudit audit;
+    private final SyncBase base;
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final AtomicLong bytesLegacy = new AtomicLong();
+    private final SessionPool zlibPool = new SessionPool(true);
+    private final SessionPool plainPool = new SessionPool(false);
 
     public SftpSyncService(Config cfg, SyncState state) {
+        this(cfg, state, IgnoreRules.defaults());
+    }
+
+    public SftpSyncService(Config cfg, SyncState state, IgnoreRules ignore) {
+        this(cfg, state, ignore, new DaemonExecutor(cfg.getRemoteMaxConcurrent()), true);
+    }
+
+    public SftpSyncService(Config cfg, SyncState state, IgnoreRules ignore, DaemonExecutor exec) {
+        this(cfg, state, ignore, exec, false);
+    }
+
+    private SftpSyncService(Config cfg, SyncState state, IgnoreRules ignore, DaemonExecutor exec, boolean ownsExecutor) {
         this.cfg = cfg;
         this.state = state;
+        this.ignore = ignore;
+        this.exec = exec;
+        this.ownsExecutor = ownsExecutor;
+        this.permits = exec.permits(cfg.getFtpHost() + ":" + cfg.getFtpPort());
+        this.localReads = new Semaphore(cfg.getScanThreads() > 0 ? cfg.getScanThreads() : Runtime.getRuntime().availableProcessors() * 2);
+        this.policy = new ThroughputPolicy(cfg.getSshCompression());
+        this.cipherOrder = cfg.getSshCiphers().isEmpty() ? CipherBenchmark.rankCiphers() : cfg.getSshCiphers();
+        this.audit = TransferAudit.open(cfg.getAuditFile());
+        this.base = SyncBase.load(cfg.getStateFile());
+        this.localScanner = new ParallelTreeScanner(cfg.getLocalDir(), ignore, cfg.getScanThreads(), exec);
         try { Files.createDirectories(cfg.getLocalDir()); } catch (Exception ignored) {}
     }
 
-    private void connect() throws Exception {
-        if (session != null && session.isConnected() && channel != null && channel.isConnected()) return;
-        JSch jsch = new JSch();
-        session = jsch.getSession(cfg.getFtpUser(), cfg.getFtpHost(), cfg.getFtpPort());
-        session.setConfig("StrictHostKeyChecking", "no");
-        session.setPassword(cfg.getFtpPass());
-        session.connect(10000);
-        channel = (ChannelSftp) session.openChannel("sftp");
-        channel.connect(10000);
+    /**
+     * Usa la instantánea del recorrido de arranque como índice local de la primera
+     * sincronización, en lugar de volver a recorrer el árbol.
+     */
+    public void seedLocalIndex(ParallelTreeScanner.LocalTree tree) {
+        this.seedTree = tree;
+    }
+
+    /** Ejecutor de hilos virtuales usado para transferencias y listados. */
+    public DaemonExecutor getExecutor() { return exec; }
+
+    /** Bytes que la reconciliación ha decidido transferir (descargas + subidas) desde el arranque. */
+    public long getBytesTransferred() { return bytesTransferred.get(); }
+
+    /**
+     * Bytes que habría transferido en las mismas pasadas el algoritmo anterior (descargas por tamaño,
+     * subidas del watcher en cada cambio de mtime y su eco), estimados a partir de la base.
+     */
+    public long getLegacyBytesEstimate() { return bytesLegacy.get(); }
+
+    /** Resumen de bytes ahorrados y coste de CPU por modo de compresión. */
+    public String throughputReport() { return policy.report(); }
+
+    private Session connect(SessionPool pool) throws Exception {
+        synchronized (pool) {
+            if (pool.session != null && pool.session.isConnected()) return pool.session;
+            // los canales de una sesión caída ya no sirven
+            pool.idle.clear();
+            JSch jsch = new JSch();
+            Session session = jsch.getSession(cfg.getFtpUser(), cfg.getFtpHost(), cfg.getFtpPort());
+            session.setConfig("StrictHostKeyChecking", "no");
+            session.setConfig("cipher.c2s", cipherOrder);
+            session.setConfig("cipher.s2c", cipherOrder);
+            String compression = pool.compressed ? "zlib@openssh.com,zlib,none" : "none";
+            session.setConfig("compression.c2s", compression);
+            session.setConfig("compression.s2c", compression);
+            session.setConfig("compression_level", String.valueOf(ThroughputPolicy.COMPRESSION_LEVEL));
+            session.setPassword(cfg.getFtpPass());
+            session.connect(10000);
+            pool.session = session;
+            return session;
+        }
+    }
+
+    // toma un canal del pool (o abre uno) respetando el límite de concurrencia del host
+    private ChannelSftp acquireChannel(SessionPool pool) throws Exception {
+        permits.acquire();
+        try {
+            Session s = connect(pool);
+            ChannelSftp ch;
+            while ((ch = pool.idle.poll()) != null) {
+                if (ch.isConnected() && ch.getSession() == s) return ch;
+                try { ch.disconnect(); } catch (Exception ignored) {}
+            }
+            ch = (ChannelSftp) s.openChannel("sftp");
+            ch.connect(10000);
+            return ch;
+        } catch (Exception e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void releaseChannel(SessionPool pool, ChannelSftp ch) {
+        try {
+            if (ch.isConnected()) pool.idle.push(ch);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private SessionPool poolFor(boolean compressed) {
+        return compressed ? zlibPool : plainPool;
     }
 
     private void disconnect() {
-        try { if (channel != null) channel.disconnect(); } catch (Exception ignored) {}
-        try { if (session != null) session.disconnect(); } catch (Exception ignored) {}
+        for (SessionPool pool : new SessionPool[]{zlibPool, plainPool}) {
+            synchronized (pool) {
+                ChannelSftp ch;
+                while ((ch = pool.idle.poll()) != null) {
+                    try { ch.disconnect(); } catch (Exception ignored) {}
+                }
+                try { if (pool.session != null) pool.session.disconnect(); } catch (Exception ignored) {}
+            }
+        }
     }
 
     /**
-     * Inicia sincronización periódica remoto->local con el intervalo definido en cfg.getPollSeconds().
+     * Inicia la reconciliación periódica con el intervalo definido en cfg.getPollSeconds().
      */
     public void startPeriodicSync() {
         long interval = Math.max(1, cfg.getPollSeconds());
-        scheduler.scheduleAtFixedRate(() -> {
+        exec.scheduleAtFixedRate(() -> {
             try {
-                syncRemoteToLocal();
+                reconcile();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("Error reconciliando local <-> remoto", e);
             }
         }, 0, interval, TimeUnit.SECONDS);
     }
 
     /**
-     * Para scheduler y cierra conexión.
+     * Cierra la conexión. Si el ejecutor es propio, antes drena (o aborta) el trabajo en vuelo;
+     * si es compartido, quien lo creó debe llamar a {@link DaemonExecutor#shutdown(long)} antes.
      */
     public void stop() {
-        try { scheduler.shutdownNow(); } catch (Exception ignored) {}
+        if (ownsExecutor) exec.shutdown(10_000);
         disconnect();
+        base.save();
+        audit.close();
+        log.info(policy.report());
+        log.info("Reconciliación acumulada: {} bytes transferidos; el algoritmo anterior habría transferido {} bytes",
+                bytesTransferred.get(), bytesLegacy.get());
     }
 
     /**
-     * Sincroniza recursivamente el directorio remoto hacia local:
-     * - detecta renames moviendo ficheros locales si coinciden por size+mtime
-     * - descarga ficheros nuevos
-     * - elimina locales que ya no existen en remoto cuando procedan del remoto o se subieron antes
+     * Reconciliación a tres bandas: compara el árbol local y el remoto con la última versión
+     * acordada ({@link SyncBase}) y sólo transfiere el lado que cambió.
+     * - cambio sólo en remoto: descarga o borrado local
+     * - cambio sólo en local: subida o borrado remoto
+     * - cambio en ambos: conflicto; la versión remota se guarda como copia "(conflicto ...)" y la local se sube
+     * - renames remotos: mueve el fichero local si coincide por size+mtime, sin descargarlo
+     * - ficheros locales modificados hace menos de {@link #UPLOAD_QUIET_MILLIS}: no se suben en esta pasada
      */
-    public void syncRemoteToLocal() throws Exception {
-        connect();
+    public void reconcile() throws Exception {
         String remoteBase = cfg.getRemoteDir();
         Path localBase = cfg.getLocalDir();
 
-        Map<String, RemoteMeta> remoteFiles = new HashMap<>();
+        // marca antes de listar: las rutas cuya base cambie después (subidas/borrados del watcher)
+        // se dejan para la próxima pasada, porque el listado puede ser anterior a ese cambio
+        long passStart = base.beginPass();
+
+        Map<String, RemoteMeta> remoteFiles = new ConcurrentHashMap<>();
         collectRemoteFiles(remoteBase, "", remoteFiles);
 
         Map<String, LocalMeta> localFiles = new HashMap<>();
-        try {
-            Files.walk(localBase).forEach(p -> {
+        ParallelTreeScanner.LocalTree tree = seedTree;
+        seedTree = null;
+        if (tree == null) tree = localScanner.scan();
+        for (ParallelTreeScanner.LocalTree.Dir d : tree.getDirs()) {
+            for (Map.Entry<String, long[]> f : d.files.entrySet()) {
+                String relUnix = d.fileRel(f.getKey());
+                Path p = localBase.resolve(relUnix.replace("/", File.separator));
+                localFiles.put(relUnix, new LocalMeta(p, f.getValue()[0], f.getValue()[1]));
+            }
+        }
+        if (!tree.isComplete()) {
+            log.warn("Directorios locales ilegibles, no se propagarán borrados locales en esta pasada: {}", tree.getFailedDirs());
+        }
+
+        // mismo tamaño que la base y otro mtime: la huella dice si es un touch o una edición. Se calcula
+        // en paralelo antes de decidir, con el mismo límite de lecturas locales que las adopciones
+        Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+        List<Callable<Void>> hashing = new ArrayList<>();
+        for (Map.Entry<String, LocalMeta> e : localFiles.entrySet()) {
+            LocalMeta l = e.getValue();
+            SyncBase.Entry b = base.get(e.getKey());
+            if (b == null || b.fingerprint == 0 || b.size != l.size || b.localMtime == l.lastModified) continue;
+            hashing.add(() -> {
+                localReads.acquire();
                 try {
-                    if (Files.isRegularFile(p)) {
-                        Path rel = localBase.relativize(p);
-                        String relUnix = rel.toString().replace(File.separatorChar, '/');
-                        localFiles.put(relUnix, new LocalMeta(p, Files.size(p), Files.getLastModifiedTime(p).toMillis()));
-                    }
-                } catch (IOException ignored) {}
+                    fingerprints.put(e.getKey(), SyncBase.fingerprint(l.path));
+                } finally {
+                    localReads.release();
+                }
+                return null;
             });
-        } catch (IOException ignored) {}
-
-        // procesar remotos: mover si candidato, o descargar
-        for (Map.Entry<String, RemoteMeta> e : remoteFiles.entrySet()) {
-            String rel = e.getKey();
-            RemoteMeta r = e.getValue();
-            Path targetLocal = localBase.resolve(rel.replace("/", File.separator));
-            LocalMeta local = localFiles.get(rel);
-
-            if (local != null) {
-                if (local.size == r.size) continue;
+        }
+        exec.invokeAll(hashing);
+
+        // unión de remoto, local y base sin copiar la base
+        Stream<String> paths = Stream.concat(remoteFiles.keySet().stream(), Stream.concat(
+                localFiles.keySet().stream().filter(rel -> !remoteFiles.containsKey(rel)),
+                base.paths().stream().filter(rel -> !remoteFiles.containsKey(rel) && !localFiles.containsKey(rel))));
+
+        List<String> adopts = new ArrayList<>();
+        List<String> downloads = new ArrayList<>();
+        Set<String> newRemote = new HashSet<>();
+        List<String> uploads = new ArrayList<>();
+        List<String> conflicts = new ArrayList<>();
+        List<String> localDeletes = new ArrayList<>();
+        List<String> remoteDeletes = new ArrayList<>();
+        long unchangedBytes = 0;
+        long legacyBytes = 0;
+        int deferred = 0;
+        long now = System.currentTimeMillis();
+        for (String rel : (Iterable<String>) paths::iterator) {
+            if (base.changedSince(rel, passStart)) continue;
+            LocalMeta l = localFiles.get(rel);
+            RemoteMeta r = remoteFiles.get(rel);
+            SyncBase.Entry b = base.get(rel);
+            SyncBase.Action action = SyncBase.decide(
+                    l == null ? null : new SyncBase.Side(l.size, l.lastModified),
+                    r == null ? null : new SyncBase.Side(r.size, r.mtime * 1000L),
+                    b,
+                    () -> fingerprints.getOrDefault(rel, 0L));
+            legacyBytes += legacyEstimate(l, r, b);
+
+            switch (action) {
+                case NONE -> {
+                    if (r != null) unchangedBytes += r.size;
+                    // touch sin cambio de contenido: se guarda el nuevo mtime para no repetir la huella
+                    if (b != null && l.lastModified != b.localMtime) {
+                        base.put(rel, new SyncBase.Entry(b.size, l.lastModified, b.remoteMtime, b.fingerprint));
+                    }
+                }
+                case ADOPT -> {
+                    adopts.add(rel);
+                    unchangedBytes += r.size;
+                }
+                case FORGET -> base.remove(rel);
+                case DOWNLOAD -> {
+                    downloads.add(rel);
+                    if (l == null && b == null) newRemote.add(rel);
+                }
+                case UPLOAD, CONFLICT -> {
+                    if (Math.abs(now - l.lastModified) < UPLOAD_QUIET_MILLIS) {
+                        transfers.debug("Aplazado, modificado hace menos de {} ms: {}", UPLOAD_QUIET_MILLIS, l.path);
+                        deferred++;
+                    } else if (action == SyncBase.Action.UPLOAD) {
+                        uploads.add(rel);
+                    } else {
+                        conflicts.add(rel);
+                    }
+                }
+                case DELETE_LOCAL -> localDeletes.add(rel);
+                case DELETE_REMOTE -> {
+                    if (tree.isComplete()) remoteDeletes.add(rel);
+                }
             }
+        }
 
-            Optional<LocalMeta> candidate = localFiles.values().stream()
-                    .filter(lm -> !lm.path.equals(targetLocal) && lm.size == r.size &&
-                            Math.abs(lm.lastModified - (r.mtime * 1000L)) < 2000L)
+        // rename remoto: fichero nuevo en remoto + borrado en remoto de otro local idéntico -> mover en local
+        int moved = 0;
+        for (Iterator<String> it = downloads.iterator(); it.hasNext(); ) {
+            String rel = it.next();
+            RemoteMeta r = remoteFiles.get(rel);
+            if (!newRemote.contains(rel)) continue;
+            Optional<String> candidate = localDeletes.stream()
+                    .filter(old -> {
+                        LocalMeta lm = localFiles.get(old);
+                        return lm.size == r.size && Math.abs(lm.lastModified - (r.mtime * 1000L)) < 2000L;
+                    })
                     .findFirst();
+            if (candidate.isEmpty()) continue;
+            LocalMeta from = localFiles.get(candidate.get());
+            Path targetLocal = localBase.resolve(rel.replace("/", File.separator));
+            try {
+                Files.createDirectories(targetLocal.getParent());
+                // el watcher no debe subir el fichero movido
+                state.markDownloaded(targetLocal);
+                Files.move(from.path, targetLocal);
+                transfers.info("Moved local (rename remoto detectado): {} -> {}", from.path, targetLocal);
+                SyncBase.Entry prev = base.get(candidate.get());
+                base.remove(candidate.get());
+                base.put(rel, new SyncBase.Entry(r.size, from.lastModified, r.mtime * 1000L, prev != null ? prev.fingerprint : 0));
+                localDeletes.remove(candidate.get());
+                it.remove();
+                // el algoritmo anterior también detectaba este rename: ni descarga ni eco
+                legacyBytes -= 2 * r.size;
+                moved++;
+            } catch (IOException ex) {
+                log.warn("No se pudo mover {} -> {}", from.path, targetLocal, ex);
+            }
+        }
 
-            if (candidate.isPresent()) {
+        long downloadBytes = 0;
+        long uploadBytes = 0;
+        List<Callable<Void>> work = new ArrayList<>();
+        for (String rel : adopts) {
+            LocalMeta l = localFiles.get(rel);
+            RemoteMeta r = remoteFiles.get(rel);
+            work.add(() -> {
+                // la huella permite reconocer después un touch sin volver a subir
+                localReads.acquire();
                 try {
-                    Files.createDirectories(targetLocal.getParent());
-                    Files.move(candidate.get().path, targetLocal, StandardCopyOption.REPLACE_EXISTING);
-                    System.out.println("Moved local (rename remoto detectado): " + candidate.get().path + " -> " + targetLocal);
-                    String oldRel = localBase.relativize(candidate.get().path).toString().replace(File.separatorChar, '/');
-                    localFiles.remove(oldRel);
-                    localFiles.put(rel, new LocalMeta(targetLocal, candidate.get().size, candidate.get().lastModified));
-                } catch (IOException ex) {
-                    ex.printStackTrace();
+                    long fp = SyncBase.fingerprint(l.path);
+                    if (unchangedSince(l, l.path)) base.put(rel, new SyncBase.Entry(l.size, l.lastModified, r.mtime * 1000L, fp));
+                } finally {
+                    localReads.release();
+                }
+                return null;
+            });
+        }
+        for (String rel : downloads) {
+            RemoteMeta r = remoteFiles.get(rel);
+            LocalMeta expected = localFiles.get(rel);
+            Path targetLocal = localBase.resolve(rel.replace("/", File.separator));
+            downloadBytes += r.size;
+            work.add(() -> {
+                download(rel, r, targetLocal, expected);
+                return null;
+            });
+        }
+        for (String rel : uploads) {
+            LocalMeta l = localFiles.get(rel);
+            uploadBytes += l.size;
+            work.add(() -> {
+                uploadFile(l.path);
+                return null;
+            });
+        }
+        for (String rel : conflicts) {
+            RemoteMeta r = remoteFiles.get(rel);
+            LocalMeta l = localFiles.get(rel);
+            downloadBytes += r.size;
+            uploadBytes += l.size;
+            work.add(() -> {
+                Path copy = conflictCopy(l.path);
+                // la local sólo se sube si la remota quedó a salvo en la copia
+                if (download(null, r, copy, null)) {
+                    log.warn("Conflicto en {}: ambos lados cambiaron; la versión remota queda en {}", rel, copy);
+                    uploadFile(l.path);
                 }
+                return null;
+            });
+        }
+        for (String rel : remoteDeletes) {
+            Path localPath = localBase.resolve(rel.replace("/", File.separator));
+            work.add(() -> {
+                if (Files.notExists(localPath)) deleteRemote(localPath);
+                return null;
+            });
+        }
+        exec.invokeAll(work);
+
+        for (String rel : localDeletes) {
+            LocalMeta lm = localFiles.get(rel);
+            if (!unchangedSince(lm, lm.path)) {
+                transfers.info("Omitido borrado local, cambió durante la pasada: {}", lm.path);
                 continue;
             }
-
-            // descargar
             try {
-                Files.createDirectories(targetLocal.getParent());
-                try (InputStream in = channel.get(r.remotePath)) {
-                    Files.copy(in, targetLocal, StandardCopyOption.REPLACE_EXISTING);
-                }
-                state.markDownloaded(targetLocal);
-                System.out.println("Downloaded: " + r.remotePath + " -> " + targetLocal);
-            } catch (SftpException | IOException ex) {
-                ex.printStackTrace();
+                Files.deleteIfExists(lm.path);
+                state.removeUploaded(lm.path);
+                state.removeDownloaded(lm.path);
+                base.remove(rel);
+                transfers.info("Deleted local (propagated remote deletion): {}", lm.path);
+            } catch (IOException ex) {
+                log.warn("No se pudo borrar {}", lm.path, ex);
             }
         }
+        base.saveIfDue();
+
+        long transferred = downloadBytes + uploadBytes;
+        bytesTransferred.addAndGet(transferred);
+        bytesLegacy.addAndGet(legacyBytes);
+        boolean changed = !work.isEmpty() || !localDeletes.isEmpty() || moved > 0;
+        if (changed || log.isDebugEnabled()) {
+            String summary = String.format(
+                    "Reconciliación: %d descargas (%d bytes), %d subidas (%d bytes), %d conflictos, %d renombrados, "
+                            + "%d borrados locales, %d borrados remotos, %d adoptados sin transferir, %d aplazados por escritura reciente; "
+                            + "%d bytes sin cambios; el algoritmo anterior habría transferido %d bytes",
+                    downloads.size(), downloadBytes, uploads.size(), uploadBytes,
+                    conflicts.size(), moved, localDeletes.size(), remoteDeletes.size(), adopts.size(), deferred,
+                    unchangedBytes, legacyBytes);
+            if (changed) log.info(summary);
+            else log.debug(summary);
+        }
+        if (!downloads.isEmpty() || !conflicts.isEmpty()) log.info(policy.report());
+    }
 
-        // procesar locales que ya no están en remoto
-        for (Map.Entry<String, LocalMeta> le : localFiles.entrySet()) {
-            String rel = le.getKey();
-            if (remoteFiles.containsKey(rel)) continue;
+    /**
+     * Descarga {@code r} en {@code targetLocal} preservando su mtime. No sobrescribe si el fichero
+     * local ya no coincide con {@code expected} ({@code null} = no debía existir). Con {@code rel}
+     * no nulo registra la nueva base de esa ruta.
+     *
+     * <p>Se escribe en un temporal oculto {@code .nombre.part} junto al destino (excluido por las
+     * reglas por defecto) y se mueve de forma atómica al terminar: un fallo o una cancelación a
+     * medias nunca deja un fichero truncado que parezca una edición local.</p>
+     *
+     * @return {@code true} si la descarga se completó
+     */
+    private boolean download(String rel, RemoteMeta r, Path targetLocal, LocalMeta expected) throws InterruptedException {
+        if (!unchangedSince(expected, targetLocal)) {
+            transfers.info("Omitida descarga, {} cambió localmente durante la pasada", targetLocal);
+            return false;
+        }
+        boolean compressed = policy.shouldCompress(r.remotePath);
+        SessionPool pool = poolFor(compressed);
+        ChannelSftp ch;
+        try {
+            ch = acquireChannel(pool);
+        } catch (InterruptedException ie) {
+            throw ie;
+        } catch (Exception ex) {
+            log.warn("Sin conexión para descargar {}", r.remotePath, ex);
+            return false;
+        }
+        Path part = targetLocal.resolveSibling("." + targetLocal.getFileName() + ".part");
+        try {
+            Files.createDirectories(targetLocal.getParent());
+            long start = System.nanoTime();
+            long bytes;
+            MessageDigest md = SyncBase.newDigest();
+            try (InputStream in = new DigestInputStream(ch.get(r.remotePath), md)) {
+                bytes = Files.copy(in, part, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+            long nanos = System.nanoTime() - start;
+            // mismo mtime en ambos lados: permite reconocer versiones iguales sin leer contenido
+            long mtime = r.mtime * 1000L;
+            Files.setLastModifiedTime(part, FileTime.fromMillis(mtime));
+            if (!unchangedSince(expected, targetLocal)) {
+                transfers.info("Omitida descarga, {} cambió localmente durante la transferencia", targetLocal);
+                return false;
+            }
+            state.markDownloaded(targetLocal);
+            Files.move(part, targetLocal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            policy.record(compressed, r.remotePath, bytes, nanos);
+            audit.record(TransferAudit.DOWNLOAD, compressed, r.remotePath, bytes, nanos);
+            if (rel != null) base.put(rel, new SyncBase.Entry(bytes, mtime, mtime, SyncBase.fingerprint(md)));
+            transfers.info("Downloaded: {} -> {}", r.remotePath, targetLocal);
+        } catch (SftpException | IOException ex) {
+            log.warn("Error descargando {}", r.remotePath, ex);
+            return false;
+        } finally {
+            releaseChannel(pool, ch);
+            try { Files.deleteIfExists(part); } catch (IOException ignored) {}
+        }
+        // aprende la extensión para próximas descargas
+        policy.learn(targetLocal);
+        return true;
+    }
 
-            LocalMeta lm = le.getValue();
-            Path fullLocal = lm.path;
-            boolean wasDownloaded = state.getDownloadedTimestamp(fullLocal) != null;
-            Long uploadedTs = state.getLastUploaded(fullLocal);
+    /**
+     * Bytes que habría movido para esta ruta el algoritmo anterior a la reconciliación a tres bandas,
+     * deduciendo de la base qué pasó desde la última pasada:
+     * - el watcher subía el fichero en cada creación o cambio de mtime (también un {@code touch});
+     * - el watcher propagaba los borrados locales;
+     * - el poll descargaba todo remoto ausente en local o con otro tamaño, salvo que el watcher
+     *   acabara de dejar allí la versión local y el remoto no cambiara después;
+     * - cada descarga volvía a subirse (eco), porque el evento de creación llegaba antes de
+     *   {@code markDownloaded} y la descarga no preservaba el mtime.
+     */
+    private static long legacyEstimate(LocalMeta l, RemoteMeta r, SyncBase.Entry b) {
+        boolean remoteChanged = r != null && (b == null || r.size != b.size || r.mtime * 1000L != b.remoteMtime);
+        boolean watched = b != null ? l == null || l.lastModified != b.localMtime : l != null && r == null;
+        long bytes = watched && l != null ? l.size : 0;
+        boolean remoteAfter = r != null && (!watched || remoteChanged);
+        if (remoteAfter && (l == null || l.size != r.size)) bytes += 2 * r.size;
+        return bytes;
+    }
 
-            if (wasDownloaded || uploadedTs != null) {
-                try {
-                    Files.deleteIfExists(fullLocal);
-                    state.removeUploaded(fullLocal);
-                    state.removeDownloaded(fullLocal);
-                    System.out.println("Deleted local (propagated remote deletion): " + fullLocal);
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-            }
+    // true si el fichero sigue como se vio al planificar (expected == null: que siga sin existir)
+    private static boolean unchangedSince(LocalMeta expected, Path p) {
+        try {
+            if (expected == null) return Files.notExists(p);
+            BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+            return a.size() == expected.size && a.lastModifiedTime().toMillis() == expected.lastModified;
+        } catch (IOException e) {
+            return false;
         }
     }
 
-    // recoge archivos remotos recursivamente (clave = ruta relativa unix)
-    private void collectRemoteFiles(String remoteBase, String relPrefix, Map<String, RemoteMeta> out) throws SftpException {
+    // "informe.txt" -> "informe (conflicto 20261018-120000).txt"
+    private static Path conflictCopy(Path p) {
+        String name = p.getFileName().toString();
+        String tag = " (conflicto " + LocalDateTime.now().format(CONFLICT_STAMP) + ")";
+        int dot = name.lastIndexOf('.');
+        String copy = dot > 0 ? name.substring(0, dot) + tag + name.substring(dot) : name + tag;
+        return p.resolveSibling(copy);
+    }
+
+    // recoge archivos remotos recursivamente (clave = ruta relativa unix); no desciende a directorios excluidos.
+    // Cada subdirectorio se lista en su propio hilo virtual; el canal se devuelve antes de esperar a los hijos.
+    private void collectRemoteFiles(String remoteBase, String relPrefix, Map<String, RemoteMeta> out) throws Exception {
         String pathToList = remoteBase;
         if (relPrefix != null && !relPrefix.isEmpty()) {
             pathToList = remoteBase.endsWith("/") ? remoteBase + relPrefix : remoteBase + "/" + relPrefix;
         }
-        @SuppressWarnings("unchecked")
-        Vector<ChannelSftp.LsEntry> entries = channel.ls(pathToList);
+        Vector<ChannelSftp.LsEntry> entries;
+        SessionPool pool = poolFor(policy.getMode() != ThroughputPolicy.Mode.NEVER);
+        ChannelSftp ch = acquireChannel(pool);
+        try {
+            @SuppressWarnings("unchecked")
+            Vector<ChannelSftp.LsEntry> listed = ch.ls(pathToList);
+            entries = listed;
+        } finally {
+            releaseChannel(pool, ch);
+        }
+        List<Callable<Void>> subdirs = new ArrayList<>();
         for (ChannelSftp.LsEntry ent : entries) {
             String name = ent.getFilename();
             if (".".equals(name) || "..".equals(name)) continue;
             String childRel = (relPrefix == null || relPrefix.isEmpty()) ? name : relPrefix + "/" + name;
             String childRemote = pathToList.endsWith("/") ? pathToList + name : pathToList + "/" + name;
+            if (ignore.isIgnored(childRel, ent.getAttrs().isDir())) continue;
 
             if (ent.getAttrs().isDir()) {
-                collectRemoteFiles(remoteBase, childRel, out);
+                subdirs.add(() -> {
+                    collectRemoteFiles(remoteBase, childRel, out);
+                    return null;
+                });
             } else if (ent.getAttrs().isReg()) {
                 long size = ent.getAttrs().getSize();
                 int mtime = ent.getAttrs().getMTime();
                 out.put(childRel, new RemoteMeta(childRemote, size, mtime));
             }
         }
+        if (subdirs.isEmpty()) return;
+        try {
+            exec.invokeAll(subdirs);
+        } catch (ExecutionException e) {
+            // un listado fallido invalida la pasada completa (si no, se borrarían locales por error)
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        }
     }
 
     /**
      * Sube un fichero local manteniendo la estructura relativa respecto a cfg.getLocalDir().
+     *
+     * <p>Compara tamaño y mtime antes y después de enviarlo, y los bytes que pasaron realmente por
+     * el stream: si el fichero cambió mientras se subía se vuelve a subir (hasta
+     * {@link #UPLOAD_ATTEMPTS} veces) y, mientras tanto, no se registra como subido ni en la base,
+     * para no dar por acordada una versión remota a medias.</p>
+     *
+     * @return {@code true} si la versión subida coincide con la local al terminar
      */
-    public void uploadFile(Path localPath) {
-        if (localPath == null) return;
+    public boolean uploadFile(Path localPath) {
+        if (localPath == null) return false;
+        boolean compressed = policy.shouldCompress(localPath);
+        SessionPool pool = poolFor(compressed);
+        ChannelSftp channel = null;
         try {
-            connect();
+            channel = acquireChannel(pool);
 
-            Path base = cfg.getLocalDir();
-            String relUnix;
-            try {
-                Path rel = base.relativize(localPath);
-                relUnix = rel.toString().replace(File.separatorChar, '/');
-            } catch (IllegalArgumentException iae) {
-                relUnix = localPath.getFileName().toString();
-            }
-
-            String remotePath = cfg.getRemoteDir() == null || cfg.getRemoteDir().isEmpty()
-                    ? relUnix
-                    : (cfg.getRemoteDir().endsWith("/") ? cfg.getRemoteDir() + relUnix : cfg.getRemoteDir() + "/" + relUnix);
+            String rel = relUnix(localPath);
+            String relUnix = rel != null ? rel : localPath.getFileName().toString();
+            String remotePath = remotePath(relUnix);
 
             String parentRemote = remotePath.contains("/") ? remotePath.substring(0, remotePath.lastIndexOf('/')) : "";
-            if (!parentRemote.isEmpty()) ensureRemoteDirExists(parentRemote);
-
-            try (InputStream in = Files.newInputStream(localPath)) {
-                channel.put(in, remotePath, ChannelSftp.OVERWRITE);
-                long lastMod = Files.getLastModifiedTime(localPath).toMillis();
-                state.markUploaded(localPath, lastMod);
-                System.out.println("Uploaded " + remotePath);
+            if (!parentRemote.isEmpty()) ensureRemoteDirExists(channel, parentRemote);
+
+            for (int attempt = 1; ; attempt++) {
+                BasicFileAttributes before = Files.readAttributes(localPath, BasicFileAttributes.class);
+                long start = System.nanoTime();
+                MessageDigest md = SyncBase.newDigest();
+                long bytes;
+                try (CountingInputStream in = new CountingInputStream(new DigestInputStream(Files.newInputStream(localPath), md))) {
+                    channel.put(in, remotePath, ChannelSftp.OVERWRITE);
+                    bytes = in.count;
+                }
+                long nanos = System.nanoTime() - start;
+                policy.record(compressed, remotePath, bytes, nanos);
+                audit.record(TransferAudit.UPLOAD, compressed, remotePath, bytes, nanos);
+
+                BasicFileAttributes after = Files.readAttributes(localPath, BasicFileAttributes.class);
+                long lastMod = before.lastModifiedTime().toMillis();
+                if (bytes == before.size() && after.size() == bytes && after.lastModifiedTime().toMillis() == lastMod) {
+                    state.markUploaded(localPath, lastMod);
+                    long remoteMtime = preserveMtime(channel, remotePath, lastMod);
+                    if (rel != null) base.put(rel, new SyncBase.Entry(bytes, lastMod, remoteMtime, SyncBase.fingerprint(md)));
+                    transfers.info("Uploaded {}", remotePath);
+                    return true;
+                }
+                if (attempt == UPLOAD_ATTEMPTS) {
+                    transfers.warn("{} siguió cambiando durante {} subidas; se reintentará en la próxima pasada", localPath, attempt);
+                    return false;
+                }
+                transfers.info("{} cambió durante la subida, se vuelve a subir", localPath);
             }
         } catch (SftpException se) {
-            System.err.println("SFTP error uploading " + localPath + ": " + se.getMessage());
-            se.printStackTrace();
+            log.error("SFTP error uploading {}: {}", localPath, se.getMessage(), se);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Error uploading {}", localPath, e);
+        } finally {
+            if (channel != null) releaseChannel(pool, channel);
+        }
+        return false;
+    }
+
+    /**
+     * {@code true} si el contenido local coincide con la última versión acordada, es decir, si sólo
+     * cambió el mtime (por ejemplo un {@code touch}) y no hace falta subirlo. En ese caso actualiza
+     * el mtime local de la base para no recalcular la huella en la próxima pasada.
+     */
+    public boolean matchesBase(Path localPath) {
+        String rel = relUnix(localPath);
+        SyncBase.Entry b = rel == null ? null : base.get(rel);
+        if (b == null || b.fingerprint == 0) return false;
+        try {
+            BasicFileAttributes a = Files.readAttributes(localPath, BasicFileAttributes.class);
+            if (a.size() != b.size) return false;
+            long mtime = a.lastModifiedTime().toMillis();
+            if (mtime != b.localMtime) {
+                if (SyncBase.fingerprint(localPath) != b.fingerprint) return false;
+                base.put(rel, new SyncBase.Entry(b.size, mtime, b.remoteMtime, b.fingerprint));
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
         }
     }
 
@@ -232,42 +716,70 @@ public class SftpSyncService {
      */
     public void deleteRemote(Path localPath) {
         if (localPath == null) return;
+        SessionPool pool = plainPool;
+        ChannelSftp channel = null;
         try {
-            connect();
-
-            Path base = cfg.getLocalDir();
-            String relUnix;
-            try {
-                Path rel = base.relativize(localPath);
-                relUnix = rel.toString().replace(File.separatorChar, '/');
-            } catch (IllegalArgumentException iae) {
-                relUnix = localPath.getFileName().toString();
-            }
+            channel = acquireChannel(pool);
 
-            String remotePath = cfg.getRemoteDir() == null || cfg.getRemoteDir().isEmpty()
-                    ? relUnix
-                    : (cfg.getRemoteDir().endsWith("/") ? cfg.getRemoteDir() + relUnix : cfg.getRemoteDir() + "/" + relUnix);
+            String rel = relUnix(localPath);
+            String relUnix = rel != null ? rel : localPath.getFileName().toString();
+            String remotePath = remotePath(relUnix);
 
             try {
                 channel.rm(remotePath);
-                System.out.println("Remote deleted: " + remotePath);
+                if (rel != null) base.remove(rel);
+                transfers.info("Remote deleted: {}", remotePath);
             } catch (SftpException se) {
+                // ya no existía: la base tampoco debe recordarlo; otro error se reintenta en la próxima pasada
+                if (se.id == ChannelSftp.SSH_FX_NO_SUCH_FILE && rel != null) base.remove(rel);
                 try {
                     channel.rmdir(remotePath);
-                    System.out.println("Remote dir deleted: " + remotePath);
+                    transfers.info("Remote dir deleted: {}", remotePath);
                 } catch (SftpException se2) {
-                    System.out.println("No se pudo eliminar remoto (posible inexistente): " + remotePath + " -> " + se.getMessage());
+                    transfers.info("No se pudo eliminar remoto (posible inexistente): {} -> {}", remotePath, se.getMessage());
                 }
             }
 
             state.removeUploaded(localPath);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Error deleting remote {}", localPath, e);
+        } finally {
+            if (channel != null) releaseChannel(pool, channel);
+        }
+    }
+
+    // ruta relativa unix respecto a local.dir, o null si localPath está fuera
+    private String relUnix(Path localPath) {
+        Path rel;
+        try {
+            rel = cfg.getLocalDir().toAbsolutePath().normalize().relativize(localPath.toAbsolutePath().normalize());
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+        if (rel.startsWith("..")) return null;
+        return rel.toString().replace(File.separatorChar, '/');
+    }
+
+    private String remotePath(String relUnix) {
+        return cfg.getRemoteDir() == null || cfg.getRemoteDir().isEmpty()
+                ? relUnix
+                : (cfg.getRemoteDir().endsWith("/") ? cfg.getRemoteDir() + relUnix : cfg.getRemoteDir() + "/" + relUnix);
+    }
+
+    // copia el mtime local al remoto (resolución de segundos); si el servidor no lo permite, usa el que tenga
+    private static long preserveMtime(ChannelSftp channel, String remotePath, long localMtime) throws SftpException {
+        try {
+            channel.setMtime(remotePath, (int) (localMtime / 1000));
+            return localMtime / 1000 * 1000;
+        } catch (SftpException e) {
+            return channel.stat(remotePath).getMTime() * 1000L;
         }
     }
 
     // asegura la existencia de un directorio remoto
-    private void ensureRemoteDirExists(String remoteDir) throws SftpException {
+    private void ensureRemoteDirExists(ChannelSftp channel, String remoteDir) throws SftpException {
         if (remoteDir == null || remoteDir.isEmpty()) return;
         String path = remoteDir.replaceAll("/+", "/");
         if (!path.startsWith("/")) path = "/" + path;
@@ -279,12 +791,27 @@ public class SftpSyncService {
             try {
                 channel.cd(part);
             } catch (SftpException e) {
-                channel.mkdir(part);
+                try {
+                    channel.mkdir(part);
+                } catch (SftpException race) {
+                    // puede haberlo creado otra subida concurrente; el cd siguiente lo confirma
+                }
                 channel.cd(part);
             }
         }
     }
 
+    // una sesión SSH con su pool de canales SFTP ociosos
+    private static class SessionPool {
+        final boolean compressed;
+        final Deque<ChannelSftp> idle = new ConcurrentLinkedDeque<>();
+        Session session;
+
+        SessionPool(boolean compressed) {
+            this.compressed = compressed;
+        }
+    }
+
     // metadata helpers
     private static class RemoteMeta {
         final String remotePath;
@@ -298,6 +825,29 @@ public class SftpSyncService {
         }
     }
 
+    // cuenta los bytes que el canal leyó realmente del fichero
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            int n = super.read(buf, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+
     private static class LocalMeta {
         final Path path;
         final long size;
@@ -0,0 +1,271 @@
+// java
+package org.juanrdzbaeza.daemon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Última instantánea acordada entre local y remoto (la "base" de la reconciliación a tres bandas).
+ *
+ * <p>Por cada ruta relativa guarda tamaño, mtime local, mtime remoto y una huella del contenido
+ * local (SHA-256 completo truncado a 64 bits). Comparando cada lado contra la base se sabe qué
+ * lado ha cambiado realmente, de modo que sólo se transfiere ese lado y los conflictos (ambos
+ * lados cambiados) se detectan sin mover bytes. Ver {@link #decide(Side, Side, Entry, LongSupplier)}.</p>
+ *
+ * <p>Se persiste en un fichero binario ({@code state.file}, por defecto {@code <local.dir>/.syncstate})
+ * con escritura atómica (fichero temporal + move). Si no existe, todas las rutas empiezan sin base.
+ * Sólo se reescribe si hubo cambios y, durante la sincronización periódica, como mucho cada
+ * {@link #SAVE_INTERVAL_MILLIS}: una base algo atrasada tras una caída sólo hace que las rutas
+ * afectadas se vuelvan a adoptar o a comparar, nunca que se pierdan cambios.</p>
+ *
+ * <p>Cada modificación lleva un número de secuencia, de modo que una pasada puede reconocer las
+ * rutas cambiadas en paralelo (por el watcher) desde {@link #beginPass()} sin copiar el mapa.</p>
+ */
+public class SyncBase {
+    private static final Logger log = LoggerFactory.getLogger(SyncBase.class);
+    private static final byte[] MAGIC = "SYNCBAS3".getBytes(StandardCharsets.US_ASCII);
+    /** Intervalo mínimo entre escrituras de {@link #saveIfDue()}. */
+    public static final long SAVE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /** Resultado de comparar una ruta contra la base. */
+    public enum Action {
+        /** Ningún lado ha cambiado. */
+        NONE,
+        /**
+         * Sin base y con el mismo tamaño en ambos lados, o ambos cambiados a la misma versión:
+         * sólo se registra la base.
+         */
+        ADOPT,
+        DOWNLOAD,
+        UPLOAD,
+        DELETE_LOCAL,
+        DELETE_REMOTE,
+        /** Borrado en ambos lados: se olvida la base. */
+        FORGET,
+        /** Ambos lados cambiaron de forma distinta. */
+        CONFLICT
+    }
+
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // secuencia del último borrado de cada ruta desde el inicio de la pasada en curso
+    private final Map<String, Long> removedAt = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private volatile long lastSave = System.currentTimeMillis();
+
+    private SyncBase(Path file) {
+        this.file = file;
+    }
+
+    /** Carga la base desde disco; si no existe o está dañada se empieza vacía. */
+    public static SyncBase load(Path file) {
+        SyncBase b = new SyncBase(file);
+        if (file == null || !Files.isRegularFile(file)) return b;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] magic = in.readNBytes(MAGIC.length);
+            if (!java.util.Arrays.equals(magic, MAGIC)) throw new IOException("cabecera desconocida");
+            while (in.readBoolean()) {
+                String rel = in.readUTF();
+                b.entries.put(rel, new Entry(in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+            }
+        } catch (IOException e) {
+            log.warn("No se pudo leer la base {}, se empieza sin ella", file, e);
+            b.entries.clear();
+        }
+        return b;
+    }
+
+    /** Guarda la base de forma atómica si cambió desde la última escritura. */
+    public synchronized void save() {
+        if (file == null || !dirty.getAndSet(false)) return;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            // el mapa es concurrente: se recorre sin copiarlo; lo que cambie durante la escritura
+            // vuelve a marcar la base como pendiente
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+                out.write(MAGIC);
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry v = e.getValue();
+                    out.writeBoolean(true);
+                    out.writeUTF(e.getKey());
+                    out.writeLong(v.size);
+                    out.writeLong(v.localMtime);
+                    out.writeLong(v.remoteMtime);
+                    out.writeLong(v.fingerprint);
+                }
+                out.writeBoolean(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastSave = System.currentTimeMillis();
+        } catch (IOException e) {
+            dirty.set(true);
+            log.warn("No se pudo guardar la base {}", file, e);
+        }
+    }
+
+    /** Como {@link #save()}, pero sólo si han pasado {@link #SAVE_INTERVAL_MILLIS} desde la última escritura. */
+    public void saveIfDue() {
+        if (dirty.get() && System.currentTimeMillis() - lastSave >= SAVE_INTERVAL_MILLIS) save();
+    }
+
+    public Entry get(String rel) { return entries.get(rel); }
+
+    public void put(String rel, Entry e) {
+        e.seq = clock.incrementAndGet();
+        entries.put(rel, e);
+        dirty.set(true);
+    }
+
+    public void remove(String rel) {
+        if (entries.remove(rel) != null) {
+            removedAt.put(rel, clock.incrementAndGet());
+            dirty.set(true);
+        }
+    }
+
+    /** Rutas con base (vista viva, sin copia). */
+    public Set<String> paths() { return entries.keySet(); }
+
+    /**
+     * Marca el inicio de una pasada de reconciliación; se llama antes de listar ambos lados.
+     * Devuelve la marca para {@link #changedSince(String, long)}.
+     */
+    public long beginPass() {
+        long mark = clock.get();
+        removedAt.values().removeIf(seq -> seq <= mark);
+        return mark;
+    }
+
+    /** {@code true} si la base de {@code rel} se modificó o borró después de {@code mark}. */
+    public boolean changedSince(String rel, long mark) {
+        Entry e = entries.get(rel);
+        return (e != null && e.seq > mark) || removedAt.getOrDefault(rel, 0L) > mark;
+    }
+
+    /**
+     * Decide qué hacer con una ruta comparando cada lado con la base.
+     *
+     * @param local            estado local o {@code null} si no existe
+     * @param remote           estado remoto o {@code null} si no existe
+     * @param base             última versión acordada o {@code null} si nunca se acordó
+     * @param localFingerprint calcula la huella local; sólo se invoca si el mtime local cambió
+     *                         pero no el tamaño (un {@code touch} sin cambio de contenido no es edición)
+     */
+    public static Action decide(Side local, Side remote, Entry base, LongSupplier localFingerprint) {
+        if (base == null) {
+            if (local == null && remote == null) return Action.NONE;
+            if (local == null) return Action.DOWNLOAD;
+            if (remote == null) return Action.UPLOAD;
+            // sin base (p. ej. la primera pasada tras actualizar desde una versión que no preservaba
+            // mtimes) el mtime no dice nada: mismo tamaño se adopta, tamaño distinto es divergencia real
+            return local.size == remote.size ? Action.ADOPT : Action.CONFLICT;
+        }
+        boolean localChanged = localChanged(local, base, localFingerprint);
+        boolean remoteChanged = remote == null || remote.size != base.size || remote.mtime != base.remoteMtime;
+
+        if (!localChanged && !remoteChanged) return Action.NONE;
+        if (localChanged && !remoteChanged) return local == null ? Action.DELETE_REMOTE : Action.UPLOAD;
+        if (!localChanged) return remote == null ? Action.DELETE_LOCAL : Action.DOWNLOAD;
+
+        // ambos lados cambiaron: una edición gana a un borrado
+        if (local == null && remote == null) return Action.FORGET;
+        if (local == null) return Action.DOWNLOAD;
+        if (remote == null) return Action.UPLOAD;
+        return sameVersion(local, remote) ? Action.ADOPT : Action.CONFLICT;
+    }
+
+    private static boolean localChanged(Side local, Entry base, LongSupplier localFingerprint) {
+        if (local == null) return true;
+        if (local.size != base.size) return true;
+        if (local.mtime == base.localMtime) return false;
+        return base.fingerprint == 0 || localFingerprint.getAsLong() != base.fingerprint;
+    }
+
+    // mismo tamaño y mismo mtime a la resolución de SFTP (segundos): se preservan mtimes al transferir
+    private static boolean sameVersion(Side local, Side remote) {
+        return local.size == remote.size && local.mtime / 1000 == remote.mtime / 1000;
+    }
+
+    /**
+     * Huella del contenido completo del fichero, o 0 si no se puede leer. Cualquier cambio de
+     * contenido la cambia (salvo colisión de 64 bits), así que un mtime distinto con la misma
+     * huella es sólo un {@code touch}.
+     */
+    public static long fingerprint(Path p) {
+        MessageDigest md = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(p), md)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            return 0;
+        }
+        return fingerprint(md);
+    }
+
+    /** Digest para calcular la huella mientras se transfiere el fichero (vía {@link DigestInputStream}). */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Huella a partir de un digest ya alimentado con el contenido. Nunca devuelve 0 (reservado para "desconocida"). */
+    public static long fingerprint(MessageDigest md) {
+        byte[] d = md.digest();
+        long v = 0;
+        for (int i = 0; i < Long.BYTES; i++) v = (v << 8) | (d[i] & 0xff);
+        return v == 0 ? 1 : v;
+    }
+
+    /** Tamaño y mtime (ms) de un lado. */
+    public static final class Side {
+        final long size;
+        final long mtime;
+
+        public Side(long size, long mtime) {
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    /** Versión acordada de una ruta. {@code fingerprint == 0} significa huella desconocida. */
+    public static final class Entry {
+        final long size;
+        final long localMtime;
+        final long remoteMtime;
+        final long fingerprint;
+        // asignada por put(); no se persiste
+        long seq;
+
+        public Entry(long size, long localMtime, long remoteMtime, long fingerprint) {
+            this.size = size;
+            this.localMtime = localMtime;
+            this.remoteMtime = remoteMtime;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
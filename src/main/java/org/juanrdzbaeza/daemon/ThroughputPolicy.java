@@ -0,0 +1,163 @@
+// java
+package org.juanrdzbaeza.daemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Decide por transferencia si usar la sesión SSH comprimida (zlib) o la sin comprimir.
+ *
+ * <p>La compresibilidad se estima comprimiendo con {@link Deflater} (mismo nivel que la sesión)
+ * los primeros {@value #SAMPLE_BYTES} bytes del fichero. Los resultados se acumulan por extensión:
+ * tras {@value #SAMPLES_PER_EXTENSION} muestras se usa la media y se deja de muestrear esa extensión.
+ * Para descargas sólo se dispone de la estadística por extensión (aprendida de subidas y de
+ * descargas anteriores); una extensión desconocida viaja sin comprimir.</p>
+ *
+ * <p>JSch no expone contadores de bytes en el cable, así que el ahorro y el coste de CPU por modo
+ * se estiman a partir de la relación y el coste por byte medidos en las muestras.</p>
+ */
+public class ThroughputPolicy {
+    /** Modo configurado en {@code ssh.compression}. */
+    public enum Mode { ADAPTIVE, ALWAYS, NEVER }
+
+    /** Nivel zlib de la sesión comprimida (también usado para muestrear). */
+    public static final int COMPRESSION_LEVEL = 6;
+
+    private static final int SAMPLE_BYTES = 64 * 1024;
+    private static final int SAMPLES_PER_EXTENSION = 4;
+    // por debajo de esta relación comprimido/original merece la pena comprimir
+    private static final double COMPRESSIBLE_RATIO = 0.8;
+
+    private final Mode mode;
+    private final Map<String, Sample> byExtension = new ConcurrentHashMap<>();
+    private final ModeStats zlib = new ModeStats();
+    private final ModeStats none = new ModeStats();
+
+    public ThroughputPolicy(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() { return mode; }
+
+    /** Decisión para subir un fichero local (puede muestrear su prefijo). */
+    public boolean shouldCompress(Path local) {
+        if (mode != Mode.ADAPTIVE) return mode == Mode.ALWAYS;
+        Sample s = learn(local);
+        return s != null && s.ratio() < COMPRESSIBLE_RATIO;
+    }
+
+    /** Decisión para descargar por nombre (sólo estadística por extensión). */
+    public boolean shouldCompress(String remoteName) {
+        if (mode != Mode.ADAPTIVE) return mode == Mode.ALWAYS;
+        Sample s = byExtension.get(extension(remoteName));
+        return s != null && s.ratio() < COMPRESSIBLE_RATIO;
+    }
+
+    /**
+     * Muestrea el prefijo del fichero si su extensión aún no tiene suficientes muestras.
+     *
+     * @return estadística acumulada de la extensión, o {@code null} si no hay ninguna
+     */
+    public Sample learn(Path local) {
+        String ext = extension(local.getFileName() != null ? local.getFileName().toString() : "");
+        Sample s = byExtension.computeIfAbsent(ext, e -> new Sample());
+        if (s.settled()) return s;
+
+        byte[] buf = new byte[SAMPLE_BYTES];
+        int n = 0;
+        try (InputStream in = Files.newInputStream(local)) {
+            int r;
+            while (n < buf.length && (r = in.read(buf, n, buf.length - n)) > 0) n += r;
+        } catch (IOException e) {
+            return s.count() > 0 ? s : null;
+        }
+        if (n == 0) return s.count() > 0 ? s : null;
+
+        Deflater d = new Deflater(COMPRESSION_LEVEL);
+        try {
+            byte[] out = new byte[n + 64];
+            long start = System.nanoTime();
+            d.setInput(buf, 0, n);
+            d.finish();
+            int compressed = 0;
+            while (!d.finished()) compressed += d.deflate(out);
+            s.add((double) compressed / n, (double) (System.nanoTime() - start) / n);
+        } finally {
+            d.end();
+        }
+        return s;
+    }
+
+    /** Registra una transferencia completada por la sesión indicada. */
+    public void record(boolean compressed, String name, long bytes, long nanos) {
+        Sample s = byExtension.get(extension(name));
+        double ratio = s != null && s.count() > 0 ? s.ratio() : 1.0;
+        double nsPerByte = s != null && s.count() > 0 ? s.nsPerByte() : 0;
+        (compressed ? zlib : none).add(bytes, nanos, (long) (bytes * Math.max(0, 1 - ratio)), (long) (bytes * nsPerByte));
+    }
+
+    /**
+     * Resumen por modo. En {@code zlib} se informa del ahorro y la CPU gastada; en {@code none},
+     * del ahorro que se ha dejado pasar y la CPU evitada.
+     */
+    public String report() {
+        return "Transferencias [zlib] " + zlib.describe("ahorro", "cpu")
+                + " | [none] " + none.describe("ahorro no aprovechado", "cpu evitada");
+    }
+
+    private static String extension(String name) {
+        int slash = name.lastIndexOf('/');
+        if (slash >= 0) name = name.substring(slash + 1);
+        int dot = name.lastIndexOf('.');
+        return dot <= 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /** Relación de compresión y coste medio por byte de una extensión. */
+    public static class Sample {
+        private int count;
+        private double ratioSum;
+        private double nsPerByteSum;
+
+        synchronized void add(double ratio, double nsPerByte) {
+            count++;
+            ratioSum += ratio;
+            nsPerByteSum += nsPerByte;
+        }
+
+        synchronized int count() { return count; }
+
+        synchronized boolean settled() { return count >= SAMPLES_PER_EXTENSION; }
+
+        public synchronized double ratio() { return count == 0 ? 1.0 : ratioSum / count; }
+
+        public synchronized double nsPerByte() { return count == 0 ? 0 : nsPerByteSum / count; }
+    }
+
+    private static class ModeStats {
+        private long files;
+        private long bytes;
+        private long nanos;
+        private long savedBytes;
+        private long cpuNanos;
+
+        synchronized void add(long bytes, long nanos, long saved, long cpu) {
+            files++;
+            this.bytes += bytes;
+            this.nanos += nanos;
+            savedBytes += saved;
+            cpuNanos += cpu;
+        }
+
+        synchronized String describe(String savedLabel, String cpuLabel) {
+            long mbps = nanos == 0 ? 0 : Math.round(bytes / (1024.0 * 1024.0) / (nanos / 1e9));
+            return "n=" + files + " bytes=" + bytes + " (" + mbps + " MB/s) " + savedLabel + "~" + savedBytes
+                    + " " + cpuLabel + "~" + (cpuNanos / 1_000_000) + "ms";
+        }
+    }
+}
@@ -0,0 +1,181 @@
+// java
+package org.juanrdzbaeza.daemon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registro binario compacto de cada transferencia, para análisis offline de rendimiento.
+ *
+ * <p>Los registros se encolan en un buffer circular acotado y los escribe un hilo aparte, así que
+ * la transferencia nunca espera al disco; si el buffer se llena el registro se descarta y se cuenta.
+ * El fichero se abre en modo append y empieza con la cabecera {@code SFTPAUD1}. Cada registro
+ * (big-endian, vía {@link DataOutputStream}) es:</p>
+ * <pre>
+ *   long  epochMillis   fin de la transferencia
+ *   byte  direction     0 = descarga, 1 = subida
+ *   byte  compressed    1 si fue por la sesión zlib
+ *   long  bytes         bytes del fichero
+ *   long  nanos         duración de la transferencia
+ *   UTF   path          ruta remota ({@link DataOutputStream#writeUTF(String)})
+ * </pre>
+ *
+ * <p>{@code java -cp JavaSFTPDaemon.jar org.juanrdzbaeza.daemon.TransferAudit audit.bin} lo vuelca como CSV.</p>
+ */
+public class TransferAudit implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(TransferAudit.class);
+    private static final byte[] MAGIC = "SFTPAUD1".getBytes(StandardCharsets.US_ASCII);
+    private static final int RING_CAPACITY = 16_384;
+
+    public static final byte DOWNLOAD = 0;
+    public static final byte UPLOAD = 1;
+
+    /** Auditoría desactivada: no escribe nada. */
+    public static final TransferAudit DISABLED = new TransferAudit();
+
+    private final ArrayBlockingQueue<Entry> ring;
+    private final DataOutputStream out;
+    private final Thread writer;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    private TransferAudit() {
+        this.ring = null;
+        this.out = null;
+        this.writer = null;
+    }
+
+    private TransferAudit(Path file) throws IOException {
+        boolean fresh = !Files.exists(file) || Files.size(file) == 0;
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024));
+        if (fresh) out.write(MAGIC);
+        this.ring = new ArrayBlockingQueue<>(RING_CAPACITY);
+        this.writer = Thread.ofVirtual().name("transfer-audit").start(this::drainLoop);
+    }
+
+    /**
+     * Abre (o crea) el fichero de auditoría; con {@code null} devuelve {@link #DISABLED}.
+     */
+    public static TransferAudit open(Path file) {
+        if (file == null) return DISABLED;
+        try {
+            return new TransferAudit(file);
+        } catch (IOException e) {
+            log.warn("No se pudo abrir la auditoría {}, queda desactivada", file, e);
+            return DISABLED;
+        }
+    }
+
+    /** Encola un registro sin bloquear. */
+    public void record(byte direction, boolean compressed, String path, long bytes, long nanos) {
+        if (ring == null || closed) return;
+        if (!ring.offer(new Entry(System.currentTimeMillis(), direction, compressed, bytes, nanos, path))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void drainLoop() {
+        List<Entry> batch = new ArrayList<>();
+        try {
+            while (!closed || !ring.isEmpty()) {
+                Entry first = ring.poll(1, TimeUnit.SECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                ring.drainTo(batch);
+                for (Entry e : batch) {
+                    out.writeLong(e.epochMillis);
+                    out.writeByte(e.direction);
+                    out.writeByte(e.compressed ? 1 : 0);
+                    out.writeLong(e.bytes);
+                    out.writeLong(e.nanos);
+                    out.writeUTF(e.path);
+                }
+                batch.clear();
+                if (ring.isEmpty()) out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.warn("Error escribiendo la auditoría de transferencias", e);
+        }
+    }
+
+    /** Vacía lo pendiente y cierra el fichero. */
+    @Override
+    public void close() {
+        if (ring == null || closed) return;
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            out.close();
+        } catch (IOException ignored) {}
+        if (dropped.get() > 0) log.warn("Registros de auditoría descartados (buffer lleno): {}", dropped.get());
+    }
+
+    /** Vuelca un fichero de auditoría como CSV por la salida estándar. */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Uso: TransferAudit <fichero>");
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Path.of(args[0]))))) {
+            byte[] magic = in.readNBytes(MAGIC.length);
+            if (!java.util.Arrays.equals(magic, MAGIC)) throw new IOException("No es un fichero de auditoría");
+            System.out.println("epoch_millis,direction,compressed,bytes,nanos,path");
+            while (true) {
+                long ts;
+                try {
+                    ts = in.readLong();
+                } catch (EOFException eof) {
+                    break;
+                }
+                byte dir = in.readByte();
+                boolean compressed = in.readByte() == 1;
+                long bytes = in.readLong();
+                long nanos = in.readLong();
+                String path = in.readUTF();
+                System.out.println(ts + "," + (dir == UPLOAD ? "up" : "down") + "," + compressed + ","
+                        + bytes + "," + nanos + ",\"" + path.replace("\"", "\"\"") + "\"");
+            }
+        }
+    }
+
+    private static class Entry {
+        final long epochMillis;
+        final byte direction;
+        final boolean compressed;
+        final long bytes;
+        final long nanos;
+        final String path;
+
+        Entry(long epochMillis, byte direction, boolean compressed, long bytes, long nanos, String path) {
+            this.epochMillis = epochMillis;
+            this.direction = direction;
+            this.compressed = compressed;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+// java
+package org.juanrdzbaeza.daemon;
+
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Carga de trabajo con ediciones mixtas contra un servidor SFTP en proceso: comprueba el estado
+ * final de ambos lados y que sólo se transfieren los bytes del lado que cambió.
+ */
+class ReconcileWorkloadTest {
+    private static final long T0 = 1_700_000_000_000L;
+
+    @TempDir
+    Path tmp;
+    private Path remote;
+    private Path local;
+    private SshServer sshd;
+    private Config cfg;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        remote = Files.createDirectories(tmp.resolve("remote"));
+        local = Files.createDirectories(tmp.resolve("local"));
+        sshd = SshServer.setUpDefaultServer();
+        sshd.setPort(0);
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(tmp.resolve("hostkey")));
+        sshd.setPasswordAuthenticator((user, pass, session) -> true);
+        sshd.setSubsystemFactories(List.of(new SftpSubsystemFactory()));
+        sshd.setFileSystemFactory(new VirtualFileSystemFactory(remote));
+        sshd.start();
+        Path props = tmp.resolve("config.properties");
+        Files.writeString(props, "ftp.host=127.0.0.1\nftp.port=" + sshd.getPort()
+                + "\nftp.user=test\nftp.pass=test\nremote.dir=/\nssh.ciphers=aes128-ctr\n"
+                + "local.dir=" + local.toString().replace('\\', '/') + "\n");
+        cfg = Config.load(props.toString());
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        sshd.stop(true);
+    }
+
+    @Test
+    void mixedEditsTransferOnlyTheChangedSide() throws Exception {
+        write(remote.resolve("a.txt"), 1000, T0);
+        write(remote.resolve("b.bin"), 1 << 20, T0);
+        write(remote.resolve("c.txt"), 2000, T0);
+        write(remote.resolve("sub/f.bin"), 3 << 20, T0);
+        write(remote.resolve("h.txt"), 500, T0);
+        write(remote.resolve("x.txt"), 700, T0);
+        long initial = 1000 + (1 << 20) + 2000 + (3 << 20) + 500 + 700;
+
+        SftpSyncService sync = new SftpSyncService(cfg, new SyncState());
+        sync.reconcile();
+        assertEquals(initial, sync.getBytesTransferred(), "primera pasada: todo se descarga");
+        sync.reconcile();
+        assertEquals(initial, sync.getBytesTransferred(), "sin cambios no se transfiere nada");
+
+        long later = T0 + 60_000;
+        write(local.resolve("a.txt"), 1500, later);                                // edición local
+        write(remote.resolve("c.txt"), 2500, later);                               // edición remota
+        Files.setLastModifiedTime(local.resolve("b.bin"), FileTime.fromMillis(later)); // touch
+        write(local.resolve("d.txt"), 300, later);                                 // nuevo local
+        Files.createDirectories(remote.resolve("moved"));
+        Files.move(remote.resolve("sub/f.bin"), remote.resolve("moved/g.bin"));    // rename remoto
+        write(local.resolve("h.txt"), 600, later);                                 // conflicto
+        write(remote.resolve("h.txt"), 800, later + 1000);
+        Files.delete(local.resolve("x.txt"));                                      // borrado local
+
+        sync.reconcile();
+        // sube a, d y h; descarga c y la copia de conflicto de h; b (touch) y g (rename) no se mueven
+        long mixed = 1500 + 300 + 600 + 2500 + 800;
+        assertEquals(initial + mixed, sync.getBytesTransferred());
+        // el algoritmo anterior: cada descarga más su eco; el watcher sube a, b (touch), d y h,
+        // y el poll descarga c y la h remota (más eco); g se habría detectado como rename
+        long legacy = 2 * initial + 1500 + (1 << 20) + 300 + 600 + 2 * 2500 + 2 * 800;
+        assertEquals(legacy, sync.getLegacyBytesEstimate());
+        assertTrue(sync.getBytesTransferred() < legacy);
+        sync.stop();
+        // el touch queda en la base: la próxima pasada no vuelve a calcular la huella
+        assertEquals(later, SyncBase.load(cfg.getStateFile()).get("b.bin").localMtime);
+
+        assertFalse(Files.exists(remote.resolve("x.txt")));
+        assertFalse(Files.exists(local.resolve("sub/f.bin")));
+        assertEquals(3 << 20, Files.size(local.resolve("moved/g.bin")));
+        assertEquals(1 << 20, Files.size(remote.resolve("b.bin")));
+        assertEquals(600, Files.size(remote.resolve("h.txt")));
+        Path copy;
+        try (Stream<Path> s = Files.list(local)) {
+            copy = s.filter(p -> p.getFileName().toString().startsWith("h (conflicto ")).findFirst().orElseThrow();
+        }
+        assertEquals(800, Files.size(copy));
+
+        // reinicio: la base persistida evita volver a transferir; sólo se sube la copia de conflicto
+        SftpSyncService restarted = new SftpSyncService(cfg, new SyncState());
+        restarted.reconcile();
+        assertEquals(800, restarted.getBytesTransferred());
+        restarted.reconcile();
+        assertEquals(800, restarted.getBytesTransferred());
+        restarted.stop();
+        assertEquals(listing(local), listing(remote));
+    }
+
+    @Test
+    void firstRunWithoutBaseAdoptsMatchingFiles() throws Exception {
+        // como tras actualizar desde una versión que no preservaba mtimes
+        for (int i = 0; i < 10; i++) {
+            write(remote.resolve("f" + i), 10_000 + i, T0);
+            Files.copy(remote.resolve("f" + i), local.resolve("f" + i));
+            Files.setLastModifiedTime(local.resolve("f" + i), FileTime.fromMillis(T0 + 3_600_000));
+        }
+        SftpSyncService sync = new SftpSyncService(cfg, new SyncState());
+        sync.reconcile();
+        sync.stop();
+        assertEquals(0, sync.getBytesTransferred());
+        try (Stream<Path> s = Files.list(local)) {
+            assertTrue(s.noneMatch(p -> p.getFileName().toString().contains("conflicto")));
+        }
+    }
+
+    @Test
+    void recentlyModifiedFilesAreNotUploadedYet() throws Exception {
+        write(local.resolve("writing.bin"), 4000, System.currentTimeMillis());
+        write(local.resolve("done.bin"), 1000, T0);
+        SftpSyncService sync = new SftpSyncService(cfg, new SyncState());
+        sync.reconcile();
+        assertEquals(1000, sync.getBytesTransferred());
+        assertFalse(Files.exists(remote.resolve("writing.bin")));
+
+        Files.setLastModifiedTime(local.resolve("writing.bin"), FileTime.fromMillis(T0));
+        sync.reconcile();
+        sync.stop();
+        assertEquals(5000, sync.getBytesTransferred());
+        assertEquals(4000, Files.size(remote.resolve("writing.bin")));
+    }
+
+    private static void write(Path p, int size, long mtime) throws IOException {
+        Files.createDirectories(p.getParent());
+        byte[] data = new byte[size];
+        new Random(size + p.getFileName().hashCode()).nextBytes(data);
+        Files.write(p, data);
+        Files.setLastModifiedTime(p, FileTime.fromMillis(mtime));
+    }
+
+    // ruta relativa -> tamaño, sin el fichero de estado
+    private static TreeMap<String, Long> listing(Path root) throws IOException {
+        TreeMap<String, Long> out = new TreeMap<>();
+        try (Stream<Path> s = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) s.filter(Files::isRegularFile)::iterator) {
+                String rel = root.relativize(p).toString().replace('\\', '/');
+                if (!rel.startsWith(".")) out.put(rel, Files.size(p));
+            }
+        }
+        return out;
+    }
+}
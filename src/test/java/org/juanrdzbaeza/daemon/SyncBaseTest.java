@@ -0,0 +1,153 @@
+// java
+package org.juanrdzbaeza.daemon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SyncBaseTest {
+    // base acordada: 100 bytes, mtime local 1000 s, mtime remoto 2000 s, huella 42
+    private static final SyncBase.Entry BASE = new SyncBase.Entry(100, 1_000_000, 2_000_000, 42);
+
+    // estados de cada lado: tamaño, mtime (ms) y huella que devolvería el contenido local
+    private static final Map<String, long[]> LOCAL = Map.of(
+            "unchanged", new long[]{100, 1_000_000, 42},
+            "touched", new long[]{100, 1_500_000, 42},
+            "edited", new long[]{100, 1_500_000, 43},
+            "resized", new long[]{150, 1_500_000, 7},
+            "asRemote", new long[]{120, 3_000_000, 9},
+            "upgraded", new long[]{100, 5_000_000, 42});
+    private static final Map<String, long[]> REMOTE = Map.of(
+            "unchanged", new long[]{100, 2_000_000},
+            "changed", new long[]{120, 3_000_000},
+            "other", new long[]{130, 3_000_000});
+
+    @ParameterizedTest(name = "base={0} local={1} remoto={2} -> {3}")
+    @CsvSource({
+            // con base
+            "true,  unchanged, unchanged, NONE",
+            "true,  touched,   unchanged, NONE",
+            "true,  edited,    unchanged, UPLOAD",
+            "true,  resized,   unchanged, UPLOAD",
+            "true,  absent,    unchanged, DELETE_REMOTE",
+            "true,  unchanged, changed,   DOWNLOAD",
+            "true,  touched,   changed,   DOWNLOAD",
+            "true,  unchanged, absent,    DELETE_LOCAL",
+            "true,  resized,   changed,   CONFLICT",
+            "true,  edited,    changed,   CONFLICT",
+            "true,  asRemote,  changed,   ADOPT",
+            "true,  absent,    changed,   DOWNLOAD",
+            "true,  resized,   absent,    UPLOAD",
+            "true,  absent,    absent,    FORGET",
+            // sin base
+            "false, absent,    absent,    NONE",
+            "false, resized,   absent,    UPLOAD",
+            "false, absent,    changed,   DOWNLOAD",
+            "false, asRemote,  changed,   ADOPT",
+            // actualización desde una versión que no preservaba mtimes: mismo tamaño, mtimes distintos
+            "false, upgraded,  unchanged, ADOPT",
+            "false, resized,   changed,   CONFLICT",
+            "false, asRemote,  other,     CONFLICT",
+    })
+    void decide(boolean hasBase, String local, String remote, SyncBase.Action expected) {
+        long[] l = LOCAL.get(local);
+        long[] r = REMOTE.get(remote);
+        SyncBase.Action action = SyncBase.decide(
+                l == null ? null : new SyncBase.Side(l[0], l[1]),
+                r == null ? null : new SyncBase.Side(r[0], r[1]),
+                hasBase ? BASE : null,
+                () -> l[2]);
+        assertEquals(expected, action);
+    }
+
+    @Test
+    void touchWithUnknownFingerprintCountsAsEdit() {
+        SyncBase.Entry noFingerprint = new SyncBase.Entry(100, 1_000_000, 2_000_000, 0);
+        assertEquals(SyncBase.Action.UPLOAD, SyncBase.decide(
+                new SyncBase.Side(100, 1_500_000), new SyncBase.Side(100, 2_000_000), noFingerprint, () -> 42));
+    }
+
+    @Test
+    void fingerprintOnlyComputedWhenMtimeChangesWithSameSize() {
+        AtomicInteger calls = new AtomicInteger();
+        LongSupplier fp = () -> {
+            calls.incrementAndGet();
+            return 42;
+        };
+        SyncBase.Side remote = new SyncBase.Side(100, 2_000_000);
+        SyncBase.decide(new SyncBase.Side(100, 1_000_000), remote, BASE, fp);
+        SyncBase.decide(new SyncBase.Side(150, 1_500_000), remote, BASE, fp);
+        assertEquals(0, calls.get());
+        SyncBase.decide(new SyncBase.Side(100, 1_500_000), remote, BASE, fp);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void fingerprintCoversWholeContent(@TempDir Path dir) throws Exception {
+        Path p = dir.resolve("f.bin");
+        byte[] data = new byte[100_000];
+        new java.util.Random(1).nextBytes(data);
+        Files.write(p, data);
+        long original = SyncBase.fingerprint(p);
+
+        Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+        assertEquals(original, SyncBase.fingerprint(p), "un touch no cambia la huella");
+
+        data[90_000] ^= 1;
+        Files.write(p, data);
+        assertNotEquals(original, SyncBase.fingerprint(p), "una edición en cualquier posición sí");
+    }
+
+    @Test
+    void savesOnlyWhenDirtyAndReloads(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve(".syncstate");
+        SyncBase base = SyncBase.load(file);
+        base.save();
+        assertFalse(Files.exists(file), "sin cambios no se escribe");
+
+        base.put("a/b.txt", new SyncBase.Entry(100, 1_000_000, 2_000_000, 42));
+        base.put("c.txt", new SyncBase.Entry(5, 6, 7, 8));
+        base.remove("c.txt");
+        base.save();
+        FileTime written = Files.getLastModifiedTime(file);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(written.toMillis() - 60_000));
+        base.save();
+        assertEquals(written.toMillis() - 60_000, Files.getLastModifiedTime(file).toMillis(), "segunda escritura sin cambios omitida");
+
+        SyncBase reloaded = SyncBase.load(file);
+        assertEquals(java.util.Set.of("a/b.txt"), reloaded.paths());
+        SyncBase.Entry e = reloaded.get("a/b.txt");
+        assertEquals(100, e.size);
+        assertEquals(1_000_000, e.localMtime);
+        assertEquals(2_000_000, e.remoteMtime);
+        assertEquals(42, e.fingerprint);
+    }
+
+    @Test
+    void changedSinceSeesPutsAndRemovalsAfterPassStart(@TempDir Path dir) {
+        SyncBase base = SyncBase.load(dir.resolve(".syncstate"));
+        base.put("old.txt", new SyncBase.Entry(1, 1, 1, 1));
+        base.put("gone.txt", new SyncBase.Entry(1, 1, 1, 1));
+        long mark = base.beginPass();
+        assertFalse(base.changedSince("old.txt", mark));
+
+        base.put("new.txt", new SyncBase.Entry(1, 1, 1, 1));
+        base.remove("gone.txt");
+        assertTrue(base.changedSince("new.txt", mark));
+        assertTrue(base.changedSince("gone.txt", mark));
+
+        long next = base.beginPass();
+        assertFalse(base.changedSince("new.txt", next));
+        assertFalse(base.changedSince("gone.txt", next));
+    }
+}